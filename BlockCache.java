@@ -0,0 +1,291 @@
+/*
+ * @file    BlockCache.java
+ * @brief   This class holds file blocks that were read ahead of the threads
+ *           reading them. Requests to prefetch a block are queued and served
+ *           by a background thread, so the reader that asked for them goes on
+ *           without waiting for the disk. Each cached block is tagged with
+ *           the file and block index it was read for; a lookup only hits if
+ *           the block still belongs to the same place, so blocks that were
+ *           freed and reused never leak stale data. Writers invalidate a
+ *           block after writing it, which also discards a prefetch of that
+ *           block that is still in flight.
+ * @author  Brendan Sweeney, SID 1161836; Chris Grass
+ * @date    December 14, 2012
+ */
+public class BlockCache extends Thread {
+    private final static int capacity = 64;     // max blocks held
+
+    private Entry[] cached;     // disk block to contents, if cached
+    private Entry[] pending;    // disk block to its queued or in-flight read
+    private Entry   lru;        // cached entries, eldest after the head
+    private Entry   queue;      // prefetches not started, oldest after head
+    private Entry   free;       // entries, with their arrays, not in use
+    private int     size;       // the number of blocks cached
+    private int     queued;     // the number of prefetches not started
+
+
+    /**
+     * Initializes an empty BlockCache. The prefetching thread is a daemon, so
+     *  it does not keep ThreadOS from shutting down. Entries are indexed by
+     *  disk block and made up front for every block that can be cached,
+     *  queued or in flight at once, so reading and prefetching allocate
+     *  nothing.
+     * @param  diskBlocks  The number of blocks on the disk.
+     * @pre    diskBlocks is not negative.
+     * @post   This BlockCache is ready to be started; it holds no blocks.
+     */
+    public BlockCache(int diskBlocks) {
+        cached  = new Entry[diskBlocks];
+        pending = new Entry[diskBlocks];
+        lru     = new Entry();
+        lru.prev = lru.next = lru;
+        queue   = new Entry();
+        queue.prev = queue.next = queue;
+
+        for (int i = 0; i <= 2 * capacity; ++i) {
+            Entry entry = new Entry();
+            entry.data = new byte[Disk.blockSize];
+            recycle(entry);
+        } // end for (; i <= 2 * capacity; )
+
+        setDaemon(true);
+    } // end constructor
+
+
+    /**
+     * Copies a cached block into a buffer if it was read for the given file
+     *  block.
+     * @param  iNumber  The inode number of the file.
+     * @param  index    The index of the block within the file.
+     * @param  block    The disk block that holds it.
+     * @param  buffer   Receives the whole block.
+     * @param  offset   The position in buffer of the first byte.
+     * @pre    buffer has room for Disk.blockSize bytes at offset.
+     * @post   On a hit, the block moves to the most recently used end.
+     * @return true if the block was copied; false otherwise.
+     */
+    public synchronized boolean read(short iNumber, int index, int block,
+                                     byte buffer[], int offset) {
+        Entry entry = block >= 0 && block < cached.length
+                ? cached[block] : null;
+
+        if (entry == null || entry.iNumber != iNumber || entry.index != index) {
+            return false;
+        } // end if (entry == null...)
+
+        unlink(entry);
+        append(lru, entry);
+        System.arraycopy(entry.data, 0, buffer, offset, Disk.blockSize);
+        return true;
+    } // end read(short, int, int, byte[], int)
+
+
+    /**
+     * Asks for a file block to be read into the cache in the background.
+     *  Blocks that are already cached or queued are skipped, and so is any
+     *  block while capacity prefetches are waiting for the disk.
+     * @param  iNumber  The inode number of the file.
+     * @param  index    The index of the block within the file.
+     * @param  block    The disk block that holds it.
+     * @pre    block is mapped at index of iNumber.
+     * @post   The block will be cached unless it is skipped or invalidated
+     *          first.
+     */
+    public synchronized void prefetch(short iNumber, int index, int block) {
+        if (block < 0 || block >= cached.length || queued >= capacity) {
+            return;
+        } // end if (block < 0...)
+
+        Entry entry = cached[block];
+
+        if ((entry != null && entry.iNumber == iNumber && entry.index == index)
+                || pending[block] != null) {
+            return;
+        } // end if ((entry != null...)
+
+        entry = take();
+        entry.iNumber = iNumber;
+        entry.index   = index;
+        entry.block   = block;
+        pending[block] = entry;
+        append(queue, entry);
+        ++queued;
+        notifyAll();
+    } // end prefetch(short, int, int)
+
+
+    /**
+     * Forgets a disk block, cached or in flight. Writers call this after the
+     *  new contents are on disk.
+     * @param  block  The disk block that was written.
+     * @pre    None.
+     * @post   block is neither cached nor about to be cached.
+     */
+    public synchronized void invalidate(int block) {
+        if (block < 0 || block >= cached.length) {
+            return;
+        } // end if (block < 0...)
+
+        Entry entry = cached[block];
+
+        if (entry != null) {
+            cached[block] = null;
+            unlink(entry);
+            recycle(entry);
+            --size;
+        } // end if (entry != null)
+
+        entry = pending[block];
+
+        if (entry != null) {
+            pending[block] = null;
+
+            if (entry.prev != null) {   // not started; run() recycles others
+                unlink(entry);
+                recycle(entry);
+                --queued;
+            } // end if (entry.prev != null)
+        } // end if (entry != null)
+    } // end invalidate(int)
+
+
+    /**
+     * Forgets every block, as when the disk is formatted.
+     * @pre    None.
+     * @post   This BlockCache holds no blocks and no prefetches are pending.
+     */
+    public synchronized void clear() {
+        while (lru.next != lru) {
+            Entry entry = lru.next;
+            cached[entry.block] = null;
+            unlink(entry);
+            recycle(entry);
+        } // end while (lru.next != lru)
+
+        while (queue.next != queue) {
+            Entry entry = queue.next;
+            unlink(entry);
+            recycle(entry);
+        } // end while (queue.next != queue)
+
+        size   = 0;
+        queued = 0;
+
+        for (int i = 0; i < pending.length; ++i) {
+            pending[i] = null;
+        } // end for (; i < pending.length; )
+    } // end clear()
+
+
+    /**
+     * Reads queued blocks one at a time until ThreadOS shuts down.
+     */
+    public void run() {
+        while (true) {
+            Entry entry;
+
+            synchronized (this) {
+                while (queue.next == queue) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    } // end try
+                } // end while (queue.next == queue)
+
+                entry = queue.next;
+                unlink(entry);
+                entry.prev = null;  // in flight
+                --queued;
+            } // end synchronized (this)
+
+            SysLib.rawread(entry.block, entry.data);
+
+            synchronized (this) {
+                // a write since the request makes this copy stale
+                if (pending[entry.block] != entry) {
+                    recycle(entry);
+                    continue;
+                } // end if (pending[entry.block] != entry)
+
+                pending[entry.block] = null;
+                Entry stale = cached[entry.block];
+
+                if (stale != null) {    // read for another file block
+                    unlink(stale);
+                    recycle(stale);
+                    --size;
+                } // end if (stale != null)
+
+                cached[entry.block] = entry;
+                append(lru, entry);
+
+                if (++size > capacity) {
+                    Entry eldest = lru.next;
+                    cached[eldest.block] = null;
+                    unlink(eldest);
+                    recycle(eldest);
+                    --size;
+                } // end if (++size > capacity)
+            } // end synchronized (this)
+        } // end while (true)
+    } // end run()
+
+
+    /*
+     * Returns an unused entry and its array.
+     */
+    private Entry take() {
+        Entry entry = free;
+
+        free = entry.next;
+        return entry;
+    } // end take()
+
+
+    /*
+     * Keeps an entry that is in no list for the next prefetch.
+     */
+    private void recycle(Entry entry) {
+        entry.prev = null;
+        entry.next = free;
+        free = entry;
+    } // end recycle(Entry)
+
+
+    /*
+     * Puts an entry at the newest end of a list: the most recently used or
+     *  the last to be read.
+     */
+    private void append(Entry list, Entry entry) {
+        entry.prev = list.prev;
+        entry.next = list;
+        list.prev.next = entry;
+        list.prev = entry;
+    } // end append(Entry, Entry)
+
+
+    /*
+     * Takes an entry out of the list it is in.
+     */
+    private void unlink(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+    } // end unlink(Entry)
+
+
+    /*
+     * A disk block and the file block it was read for. An entry is queued,
+     *  in flight, cached or free; prev and next link it in the queue or the
+     *  recently used order, next alone in the free list, and neither while
+     *  it is in flight.
+     */
+    private static class Entry {
+        short  iNumber;
+        int    index;
+        int    block;
+        byte[] data;
+        Entry  prev;
+        Entry  next;
+    } // end class Entry
+} // end class BlockCache
@@ -0,0 +1,53 @@
+/*
+ * @file    BlockPool.java
+ * @brief   This class lends block-sized byte arrays to the file system so that
+ *           reading and writing blocks does not allocate a new array for every
+ *           block. Each thread keeps a few arrays of its own, so taking and
+ *           giving back an array needs no lock; nested users on one thread,
+ *           such as a write that allocates an index block, simply take
+ *           different arrays. Arrays come back with whatever they last held.
+ * @author  Brendan Sweeney, SID 1161836; Chris Grass
+ * @date    December 14, 2012
+ */
+import java.util.ArrayDeque;
+
+
+public class BlockPool {
+    private final static int maxPerThread = 8;  // arrays kept by each thread
+
+    private static ThreadLocal<ArrayDeque<byte[]>> pool =
+            new ThreadLocal<ArrayDeque<byte[]>>() {
+                protected ArrayDeque<byte[]> initialValue() {
+                    return new ArrayDeque<byte[]>(maxPerThread);
+                } // end initialValue()
+            };
+
+
+    /**
+     * Lends a block-sized array to the calling thread.
+     * @pre    None.
+     * @post   The array returned belongs to the caller until it is given back.
+     * @return An array of Disk.blockSize bytes with undefined contents.
+     */
+    public static byte[] take() {
+        byte[] block = pool.get().pollFirst();
+
+        return (block != null) ? block : new byte[Disk.blockSize];
+    } // end take()
+
+
+    /**
+     * Gives back an array taken earlier, possibly by another thread.
+     * @param  block  The array to give back; null is ignored.
+     * @pre    block is no longer used by the caller.
+     * @post   block may be lent again to the calling thread.
+     */
+    public static void give(byte[] block) {
+        ArrayDeque<byte[]> blocks = pool.get();
+
+        if (block != null && block.length == Disk.blockSize
+                && blocks.size() < maxPerThread) {
+            blocks.addFirst(block);
+        } // end if (block != null...)
+    } // end give(byte[])
+} // end class BlockPool
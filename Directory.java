@@ -1,141 +1,316 @@
 /*
  * @file    Directory.java
  * @brief   This class is the directory structure for a simple filesystem. It
- *           holds the names of every file, indexed by their inode numbers.
+ *           holds the name of every file, indexed by its inode number, and
+ *           arranges those files into a tree of directories rooted at "/".
+ *           Each directory keeps its entries in a sorted index in memory and
+ *           stores them in its own file as variable-length records packed
+ *           into blocks. Every entry lives in a fixed block of that file so
+ *           that changes are written back one block at a time. Paths are
+ *           resolved one component at a time, with recent results kept in a
+ *           small dentry cache. A Bloom filter over every path, backed by a
+ *           small cache of recent misses, answers lookups of missing files
+ *           without walking the tree.
  * @author  Brendan Sweeney, SID 1161836
  * @date    December 14, 2012
  */
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
 public class Directory {
-    private static int maxChars = 30;   // max characters of each file name
+    private static int maxChars = 255;  // max UTF-8 bytes of each file name
+    private final static int headerSize = 4;    // bytes before each name
+    private final static int dirFlag    = 0x01; // flag bit marking a subdir
+    private final static int cacheSize = 256;   // max cached dentries
+    private final static int legacySize = 64;   // bytes per version 0 entry
+    private final static int legacyChars = 30;  // max chars of a version 0 name
+    private final static int legacyDirFlag = 0x100; // version 0 subdir bit
+    private final static int missSize  = 64;    // max cached missing paths
+    private final static int bloomHashes = 3;   // bits set per path
 
     // Directory entries
-    private int  fsizes[];      // each element stores a different file size.
-    private char fnames[][];    // each element stores a different file name.
+    private int    fsizes[];    // each element stores a name's UTF-8 length.
+    private String fnames[];    // each element stores a different file name.
+    private short parents[];    // each element stores the containing directory.
+    private short homes[];      // each element stores its block in the parent.
+    // contents of each directory, keyed by its inode number
+    private HashMap<Short, DirNode> children;
+    private HashSet<Short> dirty;       // directories changed since last sync
+    private LinkedHashMap<String, Short> dentries;  // path to inode number
+    private LinkedHashMap<String, Boolean> misses;  // paths known missing
+    private BitSet  bloom;      // Bloom filter over the paths of all entries
+    private int     bloomMask;  // bloom size - 1; the size is a power of 2
+    private int     bloomFrees; // entries freed since the filter was built
+    private boolean bloomStale; // whether the filter must be rebuilt
+    private short freeInodes[]; // stack of unused inode numbers, lowest on top
+    private int   freeCount;    // number of inode numbers on the stack
+    private boolean freeStale;  // whether the stack must be rebuilt
+    private BitSet  reserved;   // unlinked numbers not yet released
+
 
-    
     /**
      * Instantiates this Directory to support a given number of files.
      * @param  maxInumber  The number of files this Directory should support.
      * @pre    The calling class has provided an appropriate maxInumber value.
      * @post   This Directory can support the specified number of files, which
-     *          includes itself at index 0.
+     *          includes the root directory "/" at index 0.
      */
     public Directory(int maxInumber) {  // directory constructor
         fsizes = new int[maxInumber];   // maxInumber = max files
         for (int i = 1; i < maxInumber; i++)
             fsizes[i] = 0;                  // all file size initialized to 0
-        fnames = new char[maxInumber][maxChars];
+        fnames  = new String[maxInumber];   // shared with the sorted index
+        parents = new short[maxInumber];
+        homes   = new short[maxInumber];
         String root = "/";                  // entry (inode) 0 is "/"
         fsizes[0] = root.length();   // fsize[0] is the size of "/".
-        root.getChars(0, fsizes[0], fnames[0], 0);  // fnames[0] includes "/"
+        fnames[0] = root;                   // fnames[0] is "/"
+        parents[0] = -1;
+        children = new HashMap<Short, DirNode>();
+        children.put((short)0, new DirNode());
+        dirty    = new HashSet<Short>();
+        freeInodes = new short[maxInumber];
+        freeStale  = true;
+        reserved   = new BitSet(maxInumber);
+        bloomMask  = Integer.highestOneBit(Math.max(maxInumber, 64)) * 32 - 1;
+        bloom      = new BitSet(bloomMask + 1);
+        bloomStale = true;
+        misses   = new LinkedHashMap<String, Boolean>(missSize, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+                return size() > missSize;
+            } // end removeEldestEntry(Map.Entry<String, Boolean>)
+        };
+        dentries = new LinkedHashMap<String, Short>(cacheSize, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Short> e) {
+                return size() > cacheSize;
+            } // end removeEldestEntry(Map.Entry<String, Short>)
+        };
     } // end constructor
 
-    
+
     /**
-     * Initializes this Directory from a byte array that was previously created
-     *  by directory2bytes(), assuming the same inode count.
-     * @param  data  A byte array that describes a directory structure.
-     * @pre    data supports the same number of files as this Directory.
-     * @post   This Directory is a duplicate of the state of the Directory that
-     *          created data.
+     * Initializes the entries of one directory from the contents of its file,
+     *  assuming the same inode count. Each entry keeps the block of the file
+     *  it was read from. Subdirectories listed in data start out empty; their
+     *  own files must be loaded separately.
+     * @param  dirInumber  The inode number of the directory being loaded.
+     * @param  data  The contents of the directory's file.
+     * @pre    dirInumber names a directory in this Directory; data supports
+     *          the same number of files as this Directory.
+     * @post   The specified directory holds the entries listed in data and
+     *          has no changed blocks.
      * @return The number of entries read from data.
      */
-    public int bytes2directory(byte data[]) {
-        int offset  = maxChars * 2 + 4,         // byte offset for each entry
-            current,            // counter for the current entry to read
-            entries = data.length / offset;     // number of entries to read
-        // invalidate existing file entries
-        for (int i = 0; i < fsizes.length; ++i) {
-            fsizes[i] = 0;
-        } // end for (; i < fsizes.length; )
+    public int bytes2directory(short dirInumber, byte data[]) {
+        int current,            // inode number of the current entry to read
+            length,             // name length of the current entry
+            flags,              // flags of the current entry
+            offset,             // byte offset of the current entry
+            end,                // byte offset past the current block
+            entries = 0;        // number of entries read
+        DirNode node = startLoad(dirInumber);
+
+        if (node == null) {
+            return 0;
+        } // end if (node == null)
+
         // assumes data[] received directory information from disk
-        // initializes the Directory instance with this data[]
-        for (int i = 0; i < entries; ++i) {
-            current = SysLib.bytes2short(data, i * offset);
-            fsizes[current] = SysLib.bytes2short(data, i * offset + 2);
-            
-            for (int j = 0; j < fsizes[current]; ++j) {
-                fnames[current][j] =
-                        (char)SysLib.bytes2short(data, i * offset + j * 2 + 4);
-            } // end for (; j < fsizes[current]; )
-        } // end for (; i < entries; )
-        
+        // initializes this directory with this data[]
+        for (short block = 0; block * Disk.blockSize < data.length; ++block) {
+            node.blocks.add(new ArrayList<Short>());
+            offset = block * Disk.blockSize;
+            end    = Math.min(offset + Disk.blockSize, data.length);
+
+            while (offset + headerSize <= end) {
+                current = SysLib.bytes2short(data, offset);
+                length  = data[offset + 2] & 0xff;
+                flags   = data[offset + 3];
+
+                // an empty or damaged record ends the block
+                if (current <= 0 || current >= fsizes.length || length == 0
+                        || offset + headerSize + length > end
+                        || fsizes[current] > 0) {
+                    break;
+                } // end if (current <= 0...)
+
+                fsizes[current]  = length;
+                fnames[current]  = new String(data, offset + headerSize,
+                                              length, StandardCharsets.UTF_8);
+                parents[current] = dirInumber;
+                homes[current]   = block;
+                node.entries.put(fnames[current], (short)current);
+                node.blocks.get(block).add((short)current);
+
+                if ((flags & dirFlag) != 0) {
+                    children.put((short)current, new DirNode());
+                } // end if ((flags & dirFlag) != 0)
+
+                offset += headerSize + length;
+                ++entries;
+            } // end while (offset + headerSize <= end)
+        } // end for (; block * Disk.blockSize < data.length; )
+
+        node.dirtyBlocks.clear();
+        dirty.remove(dirInumber);
         return entries;
-    } // end bytes2directory(byte[])
+    } // end bytes2directory(short, byte[])
+
 
-    
     /**
-     * Stores the contents of this directory in a byte array. Each file entry
-     *  consumes 64 bytes in the array.
-     * @pre    None.
+     * Initializes the entries of one directory from a file written before
+     *  directory files carried a layout version, where every entry took 64
+     *  bytes: its inode number, its length in chars with a bit marking a
+     *  subdirectory, and up to 30 UTF-16 chars. The entries are placed anew
+     *  as packed records and every block of the directory is marked as
+     *  changed, so that the next sync rewrites the whole file.
+     * @param  dirInumber  The inode number of the directory being loaded.
+     * @param  data  The contents of the directory's file.
+     * @pre    dirInumber names a directory in this Directory; data supports
+     *          the same number of files as this Directory.
+     * @post   The specified directory holds the entries listed in data; all
+     *          of its blocks are changed.
+     * @return The number of entries read from data.
+     */
+    public int legacy2directory(short dirInumber, byte data[]) {
+        int current,            // inode number of the current entry to read
+            length,             // length field of the current entry
+            offset,             // byte offset of the current entry
+            entries = 0;        // number of entries read
+        DirNode node = startLoad(dirInumber);
+
+        if (node == null) {
+            return 0;
+        } // end if (node == null)
+
+        for (int i = 0; i < data.length / legacySize; ++i) {
+            offset  = i * legacySize;
+            current = SysLib.bytes2short(data, offset);
+            length  = SysLib.bytes2short(data, offset + 2);
+
+            // skip empty records and the self entry kept by older images
+            if (current <= 0 || current >= fsizes.length
+                    || (length & ~legacyDirFlag) == 0
+                    || (length & ~legacyDirFlag) > legacyChars
+                    || fsizes[current] > 0) {
+                continue;
+            } // end if (current <= 0...)
+
+            char[] name = new char[length & ~legacyDirFlag];
+
+            for (int j = 0; j < name.length; ++j) {
+                name[j] = (char)SysLib.bytes2short(data, offset + j * 2 + 4);
+            } // end for (; j < name.length; )
+
+            fnames[current]  = new String(name);
+            fsizes[current]  =
+                    fnames[current].getBytes(StandardCharsets.UTF_8).length;
+            parents[current] = dirInumber;
+            node.entries.put(fnames[current], (short)current);
+            place(node, (short)current);
+
+            if ((length & legacyDirFlag) != 0) {
+                children.put((short)current, new DirNode());
+            } // end if ((length & legacyDirFlag) != 0)
+
+            ++entries;
+        } // end for (; i < data.length / legacySize; )
+
+        // blocks left over from the longer records are zeroed
+        while (node.blocks.size() * Disk.blockSize < data.length) {
+            node.blocks.add(new ArrayList<Short>());
+        } // end while (node.blocks.size() * Disk.blockSize...)
+
+        for (int block = 0; block < node.blocks.size(); ++block) {
+            node.dirtyBlocks.add(block);
+        } // end for (; block < node.blocks.size(); )
+
+        dirty.add(dirInumber);
+        return entries;
+    } // end legacy2directory(short, byte[])
+
+
+    /**
+     * Stores the entries that live in one block of a directory's file. Each
+     *  file entry is a record of its inode number, the length of its UTF-8
+     *  encoded name, a flag byte, and the name itself; records are packed
+     *  from the start of the block and unused space is zeroed.
+     * @param  dirInumber  The inode number of the directory to store.
+     * @param  block  The index of the block within the directory's file.
+     * @param  buffer  A block-sized buffer that receives the block's image.
+     * @pre    buffer holds at least Disk.blockSize bytes.
      * @post   This Directory remains unchanged.
-     * @return A byte array, suitable for storing to disk, that represents the
-     *          file entries of this Directory.
-     */
-    public byte[] directory2bytes() {
-        int offset  = maxChars * 2 + 4,     // entry offset marker
-            current = 0,        // counter for the current entry to copy
-            entries = 0;        // counter for number of entries to copy
-        
-        for (int i = 0; i < fsizes.length; ++i) {
-            if (fsizes[i] > 0) {
-                ++entries;
-            } // end if (fsizes[i] > 0)
-        } // end for (; i < fsizes.length; )
-        // allocate space for file entries
-        byte[] data = new byte[entries * offset];
-        // converts Directory information into plain byte array and returns it
-        // this byte array will be written back to disk
-        // note: only meaningful directory information should be converted
-        // into bytes.
-        for (short i = 0; i < fsizes.length; ++i) {
-            if (fsizes[i] > 0) {
-                // entry found, copy it
-                SysLib.short2bytes(i, data, current * offset);
-                SysLib.short2bytes((short)fsizes[i],
-                                   data, current * offset + 2);
-                // copy filename by char
-                for (short j = 0; j < fsizes[i]; ++j) {
-                    SysLib.short2bytes((short)fnames[i][j],
-                                    data, current * offset + j * 2 + 4);
-                } // end for (; j < fsizes[i]; )
-                
-                ++current;
-            } // end if (fsizes[i] > 0)
-        } // end for (; i < fsizes.length; )
-        
-        return data;
-    } // end directory2bytes()
-
-    
-    /**
-     * Allocates the first unused inode number to a new file named by filename.
-     * @param  filename  The name of the file to create.
-     * @pre    filename does not name a file that exists in this Directory.
+     * @return true if the block belongs to the directory; false otherwise.
+     */
+    public boolean block2bytes(short dirInumber, int block, byte buffer[]) {
+        int offset = 0;         // byte offset of the current entry to copy
+        DirNode node = children.get(dirInumber);
+
+        if (node == null || block < 0 || block >= node.blocks.size()) {
+            return false;
+        } // end if (node == null...)
+
+        Arrays.fill(buffer, 0, Disk.blockSize, (byte)0);
+        // converts the block's entries into plain bytes
+        // this byte array will be written back to disk in place
+        for (short i : node.blocks.get(block)) {
+            byte[] name = fnames[i].getBytes(StandardCharsets.UTF_8);
+            SysLib.short2bytes(i, buffer, offset);
+            buffer[offset + 2] = (byte)fsizes[i];
+            buffer[offset + 3] = (byte)(isDirectory(i) ? dirFlag : 0);
+            // copy filename bytes
+            System.arraycopy(name, 0, buffer, offset + headerSize, fsizes[i]);
+            offset += headerSize + fsizes[i];
+        } // end for (i : node.blocks.get(block))
+
+        return true;
+    } // end block2bytes(short, int, byte[])
+
+
+    /**
+     * Allocates an unused inode number to a new file named by path. Unused
+     *  numbers are kept on a stack, so allocation takes constant time.
+     * @param  path  The path of the file to create.
+     * @pre    path does not name a file that exists in this Directory; every
+     *          component but the last names an existing directory.
      * @post   This Directory contains a file entry for a file with the name
-     *          specified by filename; an unused inode exists.
+     *          specified by path; an unused inode exists.
      * @return The inode number associated with the new file if it was created;
      *          -1 otherwise.
      */
-    public short ialloc(String filename) {
-        // filename is the one of a file to be created.
-        // allocates a new inode number for this filename
-        if (namei(filename) == Kernel.ERROR) {
-            for (short i = 1; i < fsizes.length; ++i) {
-                if (fsizes[i] == 0) {
-                    fsizes[i] = filename.length();
-                    filename.getChars(0, fsizes[i], fnames[i], 0);
-                    return i;
-                } // end if (fsizes[i] == 0)
-            } // end for (; i < fsizes.length; )
-        } // end if (namei(filename) != -1)
-        // file name already in use or no inodes available
-        return Kernel.ERROR;
+    public short ialloc(String path) {
+        return ialloc(path, false);
     } // end ialloc(String)
 
-    
+
+    /**
+     * Allocates an unused inode number to a new directory named by
+     *  path. The new directory starts out empty.
+     * @param  path  The path of the directory to create.
+     * @pre    path does not name a file that exists in this Directory; every
+     *          component but the last names an existing directory.
+     * @post   This Directory contains an empty directory with the name
+     *          specified by path; an unused inode exists.
+     * @return The inode number associated with the new directory if it was
+     *          created; -1 otherwise.
+     */
+    public short mkdir(String path) {
+        return ialloc(path, true);
+    } // end mkdir(String)
+
+
     /**
-     * Frees the inode of a file so that it may be deleted.
+     * Frees the inode of a file so that it may be deleted. A directory may
+     *  only be freed once it is empty.
      * @param  iNumber  The inode number of the file to be deleted.
      * @pre    iNumber is within range of the total inodes.
      * @post   The specified inode is unregistered and its file entry lost.
@@ -143,40 +318,602 @@ public class Directory {
      *          false otherwise.
      */
     public boolean ifree(short iNumber) {
+        if (!unlink(iNumber)) {
+            return false;
+        } // end if (!unlink(iNumber))
+
+        release(iNumber);
+        return true;
+    } // end ifree(short)
+
+
+    /**
+     * Removes the name of a file without making its inode number available.
+     *  The file can no longer be found by path, but its inode stays reserved
+     *  until release() is called, so that its blocks may be reclaimed while
+     *  open descriptors still refer to it. A directory may only be unlinked
+     *  once it is empty.
+     * @param  iNumber  The inode number of the file to be unlinked.
+     * @pre    iNumber is within range of the total inodes.
+     * @post   The file entry of the specified inode is lost; the inode number
+     *          is not reused until it is released.
+     * @return true if the specified inode pointed to a file in this Directory;
+     *          false otherwise.
+     */
+    public boolean unlink(short iNumber) {
         boolean found = false;
-        // deallocates this inumber (inode number)
-        // the corresponding file will be deleted.
-        if (iNumber > 0 && iNumber < fsizes.length) {
-            found = fsizes[iNumber] > 0;
+        // drops the name of this inumber (inode number)
+        // the corresponding file can no longer be opened.
+        if (iNumber > 0 && iNumber < fsizes.length && fsizes[iNumber] > 0) {
+            DirNode parent = children.get(parents[iNumber]);
+
+            if (!isEmpty(iNumber)) {
+                return false;
+            } // end if (!isEmpty(iNumber))
+
+            String key = getPath(iNumber);
+            dentries.remove(key);
+            misses.put(key, Boolean.TRUE);
+            parent.entries.remove(fnames[iNumber]);
+            parent.blocks.get(homes[iNumber]).remove((Short)iNumber);
+            parent.dirtyBlocks.add((int)homes[iNumber]);
+            dirty.add(parents[iNumber]);
+            children.remove(iNumber);
+            dirty.remove(iNumber);
+            found = true;
             fsizes[iNumber] = 0;
+            fnames[iNumber] = null;
+            reserved.set(iNumber);      // kept off the stack until released
+
+            // bits of freed paths linger, so rebuild once they pile up
+            if (++bloomFrees > fsizes.length / 2) {
+                bloomStale = true;
+            } // end if (++bloomFrees > fsizes.length / 2)
         } // end if (iNumber > 0...)
-        
+
         return found;
-    } // end ifree(short)
+    } // end unlink(short)
+
 
-    
     /**
-     * Provides the inode number of the file specified by filename.
-     * @param  filename  The name of the file to locate.
-     * @pre    filename specifies the name of a file that exists in this
+     * Makes the inode number of an unlinked file available to ialloc().
+     * @param  iNumber  The inode number of the file to be released.
+     * @pre    iNumber was unlinked and has not been released since; its
+     *          blocks have been returned to the free list.
+     * @post   iNumber may be handed out by the next ialloc().
+     */
+    public void release(short iNumber) {
+        if (iNumber <= 0 || iNumber >= fsizes.length
+                || !reserved.get(iNumber)) {
+            return;
+        } // end if (iNumber <= 0...)
+
+        reserved.clear(iNumber);
+
+        if (!freeStale && fsizes[iNumber] == 0) {
+            freeInodes[freeCount++] = iNumber;
+        } // end if (!freeStale...)
+    } // end release(short)
+
+
+    /**
+     * Provides the inode number of the file specified by path. Each component
+     *  of path is looked up in the sorted index of the directory before it;
+     *  resolved paths are kept in a dentry cache so that repeated lookups do
+     *  not walk the tree. A path without a leading "/" starts at the root.
+     * @param  path  The path of the file to locate.
+     * @pre    path specifies the name of a file that exists in this
      *          Directory.
      * @post   This Directory remains unchanged.
-     * @return The inode number of the file specified by filename if such a
+     * @return The inode number of the file specified by path if such a
      *          file could be found; -1 otherwise.
      */
-    public short namei(String filename) {
-        String test;
-        // returns the inumber corresponding to this filename
-        for (short i = 0; i < fsizes.length; ++i) {
-            if (fsizes[i] > 0) {
-                test = new String(fnames[i], 0, fsizes[i]);
-                
-                if (filename.compareTo(test) == 0) {
-                    return i;
-                } // end if (filename.compareTo(test) == 0)
-            } // end if (fsizes[i] > 0)
-        } // end for (; i < fsizes.length; )
-        // no entry found with name specified by filename
-        return Kernel.ERROR;
+    public short namei(String path) {
+        String key = canonical(path);
+        // returns the inumber corresponding to this path
+        Short cached = dentries.get(key);
+
+        if (cached != null) {
+            return cached;
+        } // end if (cached != null)
+
+        // a path missing from the filter or recently missed does not exist
+        if (key.length() > 0
+                && (!bloomContains(key) || misses.get(key) != null)) {
+            return Kernel.ERROR;
+        } // end if (key.length() > 0...)
+
+        short current = 0;
+
+        if (key.length() > 0) {
+            for (String component : key.split("/")) {
+                DirNode node = children.get(current);
+                Short next = (node == null)
+                        ? null : node.entries.get(component);
+
+                // no entry found with name specified by path
+                if (next == null) {
+                    misses.put(key, Boolean.TRUE);
+                    return Kernel.ERROR;
+                } // end if (next == null)
+
+                current = next;
+            } // end for (component : key.split("/"))
+        } // end if (key.length() > 0)
+
+        dentries.put(key, current);
+        return current;
     } // end namei(String)
+
+
+    /**
+     * Lists the entries of a directory in name order, one batch at a time.
+     *  The cursor returned by each call resumes the listing right after the
+     *  last name returned, so a listing costs one batch of memory at a time
+     *  and never touches the disk. The cursor packs the number of names
+     *  already returned with the inode number of the last one; if that entry
+     *  is removed between calls, the listing resumes by position instead.
+     * @param  dirInumber  The inode number of the directory to list.
+     * @param  cursor  0 to start a listing, or a value returned by the
+     *                  previous call.
+     * @param  names  Receives the next names; slots past the last name are
+     *                 set to null.
+     * @pre    names is not empty.
+     * @post   This Directory remains unchanged.
+     * @return The cursor for the next batch; 0 if the listing is complete;
+     *          -1 if dirInumber is not a directory or cursor is invalid.
+     */
+    public int readdir(short dirInumber, int cursor, String names[]) {
+        DirNode node  = children.get(dirInumber);
+        int     rank  = cursor >>> 16;      // names returned so far
+        short   last  = (short)(cursor & 0xffff);   // last name returned
+        int     count = 0;
+        Iterator<Short> next;
+
+        if (node == null || cursor < 0 || names.length == 0) {
+            return Kernel.ERROR;
+        } // end if (node == null...)
+
+        if (last > 0 && last < fsizes.length && fsizes[last] > 0
+                && parents[last] == dirInumber) {
+            next = node.entries.tailMap(fnames[last], false).values()
+                               .iterator();
+        } else {
+            next = node.entries.values().iterator();
+
+            // the last name returned is gone, so one fewer name precedes
+            for (int i = 1; i < rank && next.hasNext(); ++i) {
+                next.next();
+            } // end for (; i < rank && next.hasNext(); )
+        } // end if (last > 0...)
+
+        while (count < names.length && next.hasNext()) {
+            last = next.next();
+            names[count++] = fnames[last];
+        } // end while (count < names.length...)
+
+        for (int i = count; i < names.length; ++i) {
+            names[i] = null;
+        } // end for (; i < names.length; )
+
+        if (!next.hasNext()) {
+            return 0;
+        } // end if (!next.hasNext())
+
+        return (Math.min(rank + count, Short.MAX_VALUE) << 16) | last;
+    } // end readdir(short, int, String[])
+
+
+    /**
+     * Reports whether an inode number belongs to a directory.
+     * @param  iNumber  The inode number to test.
+     * @pre    None.
+     * @post   This Directory remains unchanged.
+     * @return true if iNumber names a directory in this Directory; false
+     *          otherwise.
+     */
+    public boolean isDirectory(short iNumber) {
+        return children.containsKey(iNumber);
+    } // end isDirectory(short)
+
+
+    /**
+     * Reports whether an entry has no entries below it. Plain files are
+     *  always empty.
+     * @param  iNumber  The inode number to test.
+     * @pre    None.
+     * @post   This Directory remains unchanged.
+     * @return false if iNumber names a directory that holds entries; true
+     *          otherwise.
+     */
+    public boolean isEmpty(short iNumber) {
+        DirNode node = children.get(iNumber);
+        return node == null || node.entries.isEmpty();
+    } // end isEmpty(short)
+
+
+    /**
+     * Provides the inode numbers of the immediate subdirectories of a
+     *  directory, in name order.
+     * @param  dirInumber  The inode number of the directory to inspect.
+     * @pre    None.
+     * @post   This Directory remains unchanged.
+     * @return The inode numbers of the subdirectories; an empty array if
+     *          dirInumber is not a directory.
+     */
+    public short[] subdirectories(short dirInumber) {
+        DirNode node = children.get(dirInumber);
+        int count = 0;
+
+        if (node == null) {
+            return new short[0];
+        } // end if (node == null)
+
+        for (short i : node.entries.values()) {
+            if (isDirectory(i)) {
+                ++count;
+            } // end if (isDirectory(i))
+        } // end for (i : node.entries.values())
+
+        short[] subdirs = new short[count];
+        count = 0;
+
+        for (short i : node.entries.values()) {
+            if (isDirectory(i)) {
+                subdirs[count++] = i;
+            } // end if (isDirectory(i))
+        } // end for (i : node.entries.values())
+
+        return subdirs;
+    } // end subdirectories(short)
+
+
+    /**
+     * Provides the directories whose entries changed since they were last
+     *  loaded or stored, and forgets them.
+     * @pre    None.
+     * @post   No directory is marked as changed.
+     * @return The inode numbers of the changed directories.
+     */
+    public short[] takeDirty() {
+        short[] changed = new short[dirty.size()];
+        int i = 0;
+
+        for (short dir : dirty) {
+            changed[i++] = dir;
+        } // end for (dir : dirty)
+
+        dirty.clear();
+        return changed;
+    } // end takeDirty()
+
+
+    /**
+     * Provides the blocks of a directory's file whose entries changed since
+     *  they were last loaded or stored, and forgets them.
+     * @param  dirInumber  The inode number of the directory to inspect.
+     * @pre    None.
+     * @post   No block of the directory is marked as changed.
+     * @return The indexes of the changed blocks within the directory's file,
+     *          in ascending order; an empty array if dirInumber is not a
+     *          directory.
+     */
+    public int[] takeDirtyBlocks(short dirInumber) {
+        DirNode node = children.get(dirInumber);
+
+        if (node == null) {
+            return new int[0];
+        } // end if (node == null)
+
+        int[] changed = new int[node.dirtyBlocks.size()];
+        int i = 0;
+
+        for (int block : node.dirtyBlocks) {
+            changed[i++] = block;
+        } // end for (block : node.dirtyBlocks)
+
+        node.dirtyBlocks.clear();
+        return changed;
+    } // end takeDirtyBlocks(short)
+
+
+    /**
+     * Allocates an unused inode number to a new entry named by path.
+     * @param  path  The path of the entry to create.
+     * @param  directory  Whether the new entry is a directory.
+     * @pre    None.
+     * @post   The parent directory of path contains the new entry and is
+     *          marked as changed.
+     * @return The inode number of the new entry if it was created; -1
+     *          otherwise.
+     */
+    private short ialloc(String path, boolean directory) {
+        String key   = canonical(path);
+        int    slash = key.lastIndexOf('/');
+        String name  = key.substring(slash + 1);
+        short  parent = (slash < 0) ? 0 : namei(key.substring(0, slash));
+        DirNode node  = (parent < 0) ? null : children.get(parent);
+        int    length = name.getBytes(StandardCharsets.UTF_8).length;
+
+        // parent must be an existing directory without this name
+        if (node == null || length == 0
+                || length > maxChars || node.entries.containsKey(name)) {
+            return Kernel.ERROR;
+        } // end if (node == null...)
+
+        if (freeStale) {
+            rebuildFreeInodes();
+        } // end if (freeStale)
+
+        // no inodes available
+        if (freeCount == 0) {
+            return Kernel.ERROR;
+        } // end if (freeCount == 0)
+
+        short i = freeInodes[--freeCount];
+        fsizes[i]  = length;
+        fnames[i]  = name;
+        parents[i] = parent;
+        node.entries.put(name, i);
+        place(node, i);
+        dirty.add(parent);
+
+        if (directory) {
+            children.put(i, new DirNode());
+        } // end if (directory)
+
+        dentries.put(key, i);
+        misses.remove(key);
+        bloomAdd(key);
+        return i;
+    } // end ialloc(String, boolean)
+
+
+    /**
+     * Refills the stack of unused inode numbers from the entries currently
+     *  held, so that the lowest unused number is allocated first. This runs
+     *  once after the directory tree has been loaded; afterwards ialloc() and
+     *  release() keep the stack current. Numbers unlinked but not yet
+     *  released are left out, since their blocks are still being reclaimed;
+     *  release() adds them once that is done.
+     * @pre    None.
+     * @post   The stack holds exactly the unused inode numbers above 0 that
+     *          are not reserved.
+     */
+    private void rebuildFreeInodes() {
+        freeCount = 0;
+
+        for (int i = fsizes.length - 1; i > 0; --i) {
+            if (fsizes[i] == 0 && !reserved.get(i)) {
+                freeInodes[freeCount++] = (short)i;
+            } // end if (fsizes[i] == 0...)
+        } // end for (; i > 0; )
+
+        freeStale = false;
+    } // end rebuildFreeInodes()
+
+
+    /**
+     * Prepares a directory to be loaded from its file: forgets its entries and
+     *  every cached lookup, and marks the free stack and filter for rebuild.
+     * @param  dirInumber  The inode number of the directory being loaded.
+     * @pre    None.
+     * @post   The directory, if it exists, is empty.
+     * @return The node of the directory; null if it is not a directory.
+     */
+    private DirNode startLoad(short dirInumber) {
+        DirNode node = children.get(dirInumber);
+
+        if (node == null) {
+            return null;
+        } // end if (node == null)
+
+        // invalidate existing file entries
+        clearEntries(dirInumber);
+        dentries.clear();
+        misses.clear();
+        freeStale  = true;
+        bloomStale = true;
+        return node;
+    } // end startLoad(short)
+
+
+    /**
+     * Forgets every entry below a directory, leaving it empty.
+     * @param  dirInumber  The inode number of the directory to clear.
+     * @pre    dirInumber names a directory in this Directory.
+     * @post   The directory and all its former subdirectories are empty; their
+     *          inode numbers are available.
+     */
+    private void clearEntries(short dirInumber) {
+        DirNode node = children.get(dirInumber);
+
+        for (short child : node.entries.values()) {
+            if (isDirectory(child)) {
+                clearEntries(child);
+                children.remove(child);
+            } // end if (isDirectory(child))
+
+            fsizes[child] = 0;
+            fnames[child] = null;
+        } // end for (child : node.entries.values())
+
+        node.entries.clear();
+        node.blocks.clear();
+        node.dirtyBlocks.clear();
+    } // end clearEntries(short)
+
+
+    /**
+     * Assigns a new entry to the first block of its directory's file that has
+     *  room for it, adding a block at the end if none does.
+     * @param  node  The directory receiving the entry.
+     * @param  iNumber  The inode number of the new entry.
+     * @pre    The entry is not yet assigned to a block.
+     * @post   The entry lives in a block of the directory's file, which is
+     *          marked as changed.
+     */
+    private void place(DirNode node, short iNumber) {
+        short block = 0;
+
+        while (block < node.blocks.size()
+                && blockBytes(node.blocks.get(block))
+                   + headerSize + fsizes[iNumber] > Disk.blockSize) {
+            ++block;
+        } // end while (block < node.blocks.size()...)
+
+        if (block == node.blocks.size()) {
+            node.blocks.add(new ArrayList<Short>());
+        } // end if (block == node.blocks.size())
+
+        node.blocks.get(block).add(iNumber);
+        node.dirtyBlocks.add((int)block);
+        homes[iNumber] = block;
+    } // end place(DirNode, short)
+
+
+    /**
+     * Adds a path to the Bloom filter.
+     * @param  key  A canonical path.
+     * @pre    None.
+     * @post   bloomContains(key) is true.
+     */
+    private void bloomAdd(String key) {
+        int hash = key.hashCode(),
+            step = bloomStep(hash);
+
+        for (int i = 0; i < bloomHashes; ++i) {
+            bloom.set((hash + i * step) & bloomMask);
+        } // end for (; i < bloomHashes; )
+    } // end bloomAdd(String)
+
+
+    /**
+     * Tests whether a path may name an entry. Rebuilds the filter from every
+     *  entry first if it is stale.
+     * @param  key  A canonical path.
+     * @pre    None.
+     * @post   The filter is current.
+     * @return false if key certainly names no entry; true otherwise.
+     */
+    private boolean bloomContains(String key) {
+        if (bloomStale) {
+            bloom.clear();
+            bloomFrees = 0;
+            bloomStale = false;
+
+            for (short i = 1; i < fsizes.length; ++i) {
+                if (fsizes[i] > 0) {
+                    bloomAdd(getPath(i));
+                } // end if (fsizes[i] > 0)
+            } // end for (; i < fsizes.length; )
+        } // end if (bloomStale)
+
+        int hash = key.hashCode(),
+            step = bloomStep(hash);
+
+        for (int i = 0; i < bloomHashes; ++i) {
+            if (!bloom.get((hash + i * step) & bloomMask)) {
+                return false;
+            } // end if (!bloom.get((hash + i * step) & bloomMask))
+        } // end for (; i < bloomHashes; )
+
+        return true;
+    } // end bloomContains(String)
+
+
+    /**
+     * Derives the odd probe step of a path's Bloom bits from its hash code,
+     *  so that each path gets its own sequence of bit positions.
+     * @param  hash  The hash code of a path.
+     * @pre    None.
+     * @post   None.
+     * @return An odd step derived from hash.
+     */
+    private static int bloomStep(int hash) {
+        hash *= 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) | 1;
+    } // end bloomStep(int)
+
+
+    /**
+     * Provides the number of bytes the records of a block occupy on disk.
+     * @param  members  The entries that live in the block.
+     * @pre    None.
+     * @post   None.
+     * @return The total size of the records of members, in bytes.
+     */
+    private int blockBytes(ArrayList<Short> members) {
+        int bytes = 0;
+
+        for (short i : members) {
+            bytes += headerSize + fsizes[i];
+        } // end for (i : members)
+
+        return bytes;
+    } // end blockBytes(ArrayList<Short>)
+
+
+    /**
+     * Builds the canonical path of an entry by following its parents.
+     * @param  iNumber  The inode number of an existing entry.
+     * @pre    iNumber names an entry in this Directory.
+     * @post   This Directory remains unchanged.
+     * @return The canonical path of the entry; "" for the root.
+     */
+    private String getPath(short iNumber) {
+        StringBuilder path = new StringBuilder();
+
+        for (short i = iNumber; i > 0; i = parents[i]) {
+            if (path.length() > 0) {
+                path.insert(0, '/');
+            } // end if (path.length() > 0)
+
+            path.insert(0, fnames[i]);
+        } // end for (; i > 0; )
+
+        return path.toString();
+    } // end getPath(short)
+
+
+    /**
+     * Reduces a path to canonical form: no leading, trailing, or repeated
+     *  slashes. Paths that are already canonical are returned as is.
+     * @param  path  The path to reduce.
+     * @pre    path is not null.
+     * @post   None.
+     * @return The canonical form of path; "" for the root.
+     */
+    private static String canonical(String path) {
+        if (!path.startsWith("/") && !path.endsWith("/")
+                && path.indexOf("//") < 0) {
+            return path;
+        } // end if (!path.startsWith("/")...)
+
+        StringBuilder key = new StringBuilder();
+
+        for (String component : path.split("/")) {
+            if (component.length() > 0) {
+                if (key.length() > 0) {
+                    key.append('/');
+                } // end if (key.length() > 0)
+
+                key.append(component);
+            } // end if (component.length() > 0)
+        } // end for (component : path.split("/"))
+
+        return key.toString();
+    } // end canonical(String)
+
+
+    /*
+     * The contents of one directory: a sorted index of its entries by name,
+     *  the entries held by each block of its file, and the blocks that have
+     *  changed since the file was last written.
+     */
+    private static class DirNode {
+        TreeMap<String, Short> entries = new TreeMap<String, Short>();
+        ArrayList<ArrayList<Short>> blocks = new ArrayList<ArrayList<Short>>();
+        TreeSet<Integer> dirtyBlocks = new TreeSet<Integer>();
+    } // end class DirNode
 } // end class Directory
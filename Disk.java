@@ -17,6 +17,7 @@ public class Disk extends Thread {
     private boolean readyBuffer;
 
     private byte[] buffer;
+    private int bufferOffset;
     private int currentBlockId;
     private int targetBlockId;
 
@@ -26,6 +27,7 @@ public class Disk extends Thread {
 	command = IDLE;
 	readyBuffer = false;
 	buffer = null;
+	bufferOffset = 0;
 	currentBlockId = 0;
 	targetBlockId = 0;
 	try {
@@ -42,14 +44,25 @@ public class Disk extends Thread {
     }
 
     public synchronized boolean read( int blockId, byte buffer[] ) {
+	return read( blockId, buffer, 0 );
+    }
+
+    // reads a block straight into buffer starting at offset
+    public synchronized boolean read( int blockId, byte buffer[], int offset ) {
 
 	if ( blockId < 0 || blockId > diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
 	    return false;
 	}
 
+	if ( offset < 0 || offset > buffer.length - blockSize ) {
+	    SysLib.cerr( "threadOS: a wrong offset for read\n" );
+	    return false;
+	}
+
 	if ( command == IDLE && readyBuffer == false ) {
 	    this.buffer = buffer;
+	    bufferOffset = offset;
 	    targetBlockId = blockId;
 	    command = READ;
 	    notify( );
@@ -67,6 +80,7 @@ public class Disk extends Thread {
 
 	if ( command == IDLE && readyBuffer == false ) {
 	    this.buffer = buffer;
+	    bufferOffset = 0;
 	    targetBlockId = blockId;
 	    command = WRITE;
 	    notify( );
@@ -138,11 +152,11 @@ public class Disk extends Thread {
 	    switch( command ) {
 	    case READ:
 		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
+				  buffer, bufferOffset, 
 				  blockSize );
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
+		System.arraycopy( buffer, bufferOffset, 
 				  data, targetBlockId * blockSize, 
 				  blockSize );
 		break;
@@ -0,0 +1,337 @@
+/*
+ * @file    FdChannel.java
+ * @brief   This class is a SeekableByteChannel over a ThreadOS file
+ *           descriptor, so Java code written against channels and streams can
+ *           move data through the file system. The channel keeps its own
+ *           position and moves data with pread and pwrite. Heap buffers are
+ *           read into and written from in place. Direct buffers go through
+ *           one scratch array that the channel keeps and reuses, so no call
+ *           allocates a new array. Buffered streams over the channel move
+ *           whole blocks at a time. Like the descriptor itself, a channel may
+ *           only be used by the thread that opened it.
+ * @author  Brendan Sweeney, SID 1161836; Chris Grass
+ * @date    December 14, 2012
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+
+public class FdChannel implements SeekableByteChannel {
+    public final static int chunkSize = 8 * Disk.blockSize; // bytes per copy
+
+    private int     fd;         // descriptor read and written
+    private long    position;   // file offset of the next transfer
+    private boolean open;
+    private byte[]  scratch;    // bounce array for direct buffers
+
+
+    /**
+     * Initializes a FdChannel over an open descriptor. The channel starts at
+     *  the seek pointer of fd and owns fd from now on.
+     * @param  fd  The descriptor, as returned by SysLib.open.
+     * @pre    fd is open in the calling thread.
+     * @post   This FdChannel is open at the seek pointer of fd.
+     * @throws IOException if fd is not open.
+     */
+    public FdChannel(int fd) throws IOException {
+        int seekPtr = SysLib.seek(fd, 0, FileSystem.SEEK_CUR);
+
+        if (seekPtr < 0) {
+            throw new IOException("bad file descriptor " + fd);
+        } // end if (seekPtr < 0)
+
+        this.fd  = fd;
+        position = seekPtr;
+        open     = true;
+    } // end constructor
+
+
+    /**
+     * Reads bytes at the position of this channel into the remaining space of
+     *  a buffer, advancing both.
+     * @param  dst  The buffer that receives the bytes.
+     * @pre    None.
+     * @post   The bytes read are in dst, before its new position.
+     * @return The number of bytes read; -1 at the end of the file.
+     * @throws IOException if the channel is closed or the read fails.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        } // end if (!dst.hasRemaining())
+
+        if (position >= Inode.maxFileSize) {
+            return -1;
+        } // end if (position >= Inode.maxFileSize)
+
+        int total = 0;
+        int count;
+
+        if (dst.hasArray()) {
+            count = check(SysLib.pread(fd, dst.array(),
+                    dst.arrayOffset() + dst.position(), dst.remaining(),
+                    (int)position));
+            dst.position(dst.position() + count);
+            total = count;
+        } else {
+            int length;
+
+            do {
+                length = Math.min(dst.remaining(), scratch().length);
+                count  = check(SysLib.pread(fd, scratch, 0, length,
+                                            (int)(position + total)));
+                dst.put(scratch, 0, count);
+                total += count;
+            } while (count == length && dst.hasRemaining());
+        } // end if (dst.hasArray())
+
+        position += total;
+        return (total == 0) ? -1 : total;
+    } // end read(ByteBuffer)
+
+
+    /**
+     * Writes the remaining bytes of a buffer at the position of this channel,
+     *  advancing both.
+     * @param  src  The buffer that holds the bytes.
+     * @pre    None.
+     * @post   The bytes written are in the file.
+     * @return The number of bytes written.
+     * @throws IOException if the channel is closed or the disk or file is
+     *          full.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+
+        int total = 0;
+
+        if (src.hasArray()) {
+            total = put(src.array(), src.arrayOffset() + src.position(),
+                        src.remaining());
+            src.position(src.position() + total);
+        } else {
+            while (src.hasRemaining()) {
+                int length = Math.min(src.remaining(), scratch().length);
+
+                src.get(scratch, 0, length);
+                total += put(scratch, 0, length);
+            } // end while (src.hasRemaining())
+        } // end if (src.hasArray())
+
+        return total;
+    } // end write(ByteBuffer)
+
+
+    /**
+     * Gives the position of this channel.
+     * @pre    None.
+     * @post   This FdChannel remains unchanged.
+     * @return The file offset of the next read or write.
+     * @throws IOException if the channel is closed.
+     */
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    } // end position()
+
+
+    /**
+     * Moves the position of this channel. The seek pointer of the descriptor
+     *  is not moved.
+     * @param  newPosition  The file offset of the next read or write; it may
+     *                       lie past the end of the file.
+     * @pre    None.
+     * @post   The next read or write starts at newPosition.
+     * @return This channel.
+     * @throws IOException if the channel is closed.
+     */
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        } // end if (newPosition < 0)
+
+        position = newPosition;
+        return this;
+    } // end position(long)
+
+
+    /**
+     * Gives the length of the file.
+     * @pre    None.
+     * @post   This FdChannel remains unchanged.
+     * @return The number of bytes in the file.
+     * @throws IOException if the channel is closed.
+     */
+    public long size() throws IOException {
+        ensureOpen();
+        return check(SysLib.fsize(fd));
+    } // end size()
+
+
+    /**
+     * Truncates the file to a size, if it is longer, with ftruncate. Blocks
+     *  past the new end are freed.
+     * @param  size  The length to truncate to.
+     * @pre    None.
+     * @post   The file is at most size bytes long; the position is at most
+     *          size.
+     * @return This channel.
+     * @throws IOException if the channel is closed or the file could not be
+     *          truncated.
+     */
+    public SeekableByteChannel truncate(long size) throws IOException {
+        ensureOpen();
+
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size");
+        } // end if (size < 0)
+
+        if (size < size()) {
+            check(SysLib.ftruncate(fd, (int)size));
+        } // end if (size < size())
+
+        position = Math.min(position, size);
+        return this;
+    } // end truncate(long)
+
+
+    /**
+     * Determines whether this channel is open.
+     * @pre    None.
+     * @post   This FdChannel remains unchanged.
+     * @return true until the channel is closed; false afterward.
+     */
+    public boolean isOpen() {
+        return open;
+    } // end isOpen()
+
+
+    /**
+     * Closes this channel and its descriptor. Closing twice has no effect.
+     * @pre    None.
+     * @post   The descriptor is closed.
+     * @throws IOException if the descriptor could not be closed.
+     */
+    public void close() throws IOException {
+        if (open) {
+            open    = false;
+            scratch = null;
+            check(SysLib.close(fd));
+        } // end if (open)
+    } // end close()
+
+
+    /**
+     * Opens a buffered stream that reads this channel from its position on,
+     *  chunkSize bytes at a time. Closing the stream closes the channel.
+     * @pre    None.
+     * @post   Reading the stream advances the position of this channel.
+     * @return The stream.
+     */
+    public InputStream newInputStream() {
+        return new BufferedInputStream(Channels.newInputStream(this),
+                                       chunkSize);
+    } // end newInputStream()
+
+
+    /**
+     * Opens a buffered stream that writes this channel from its position on,
+     *  chunkSize bytes at a time. Closing the stream flushes it and closes the
+     *  channel.
+     * @pre    None.
+     * @post   Flushing the stream advances the position of this channel.
+     * @return The stream.
+     */
+    public OutputStream newOutputStream() {
+        return new BufferedOutputStream(Channels.newOutputStream(this),
+                                        chunkSize);
+    } // end newOutputStream()
+
+
+    /**
+     * Writes part of an array at the position of this channel and advances
+     *  it.
+     * @param  buffer  The array that holds the bytes.
+     * @param  start   The position in buffer of the first byte.
+     * @param  length  The number of bytes to write.
+     * @pre    The channel is open.
+     * @post   The bytes are in the file.
+     * @return length.
+     * @throws IOException if not every byte could be written.
+     */
+    private int put(byte buffer[], int start, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        } // end if (length == 0)
+
+        if (position + length > Inode.maxFileSize) {
+            throw new IOException("file too large");
+        } // end if (position + length > Inode.maxFileSize)
+
+        int count = check(SysLib.pwrite(fd, buffer, start, length,
+                                        (int)position));
+        position += count;
+
+        if (count < length) {
+            throw new IOException("disk full");
+        } // end if (count < length)
+
+        return count;
+    } // end put(byte[], int, int)
+
+
+    /**
+     * Gives the scratch array, allocating it on first use.
+     * @pre    None.
+     * @post   scratch holds chunkSize bytes.
+     * @return scratch.
+     */
+    private byte[] scratch() {
+        if (scratch == null) {
+            scratch = new byte[chunkSize];
+        } // end if (scratch == null)
+
+        return scratch;
+    } // end scratch()
+
+
+    /**
+     * Turns the result of a system call into an exception if it failed.
+     * @param  result  The value returned by SysLib.
+     * @pre    None.
+     * @post   None.
+     * @return result if it is not negative.
+     * @throws IOException if result is negative.
+     */
+    private int check(int result) throws IOException {
+        if (result < 0) {
+            throw new IOException("system call failed on fd " + fd);
+        } // end if (result < 0)
+
+        return result;
+    } // end check(int)
+
+
+    /**
+     * Fails if this channel has been closed.
+     * @pre    None.
+     * @post   None.
+     * @throws ClosedChannelException if the channel is closed.
+     */
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        } // end if (!open)
+    } // end ensureOpen()
+} // end class FdChannel
@@ -6,20 +6,65 @@
  *           are maintained on disk as a linked list of blocks that each point
  *           to the next free block in the list. The head of the list is held
  *           in the superblock.
+ *
+ *          Threads working on different files do not share a lock. Locks are
+ *           always taken in the following order, and a thread never waits for
+ *           one while holding a later one:
+ *           1. the Directory monitor, for lookups, creation, removal and
+ *              storing of names (FileTable.falloc, unlink and mkdir; readdir;
+ *              sync);
+ *           2. the FileTable slot of an iNumber, for its open entries and
+ *              shared Inode (falloc, ffree, unlink);
+ *           3. the write buffer of an entry, while small writes are staged
+ *              into it or it is flushed; a thread holds at most one;
+ *           4. the RangeLock of an iNumber, for the bytes a read, write or
+ *              flush touches; it is waited for with no other monitor held
+ *              than a write buffer;
+ *           5. the stripe of a file block, while the block is read, changed
+ *              and written back whole; a thread holds at most one;
+ *           6. the Inode monitor, for its pointers, length and write-back;
+ *           7. a SuperBlock shard, then the SuperBlock free list itself.
+ *           A clone holds the ranges of two files, taken in iNumber order.
+ *           The Reclaimer only takes 7, so waiting for it is safe anywhere.
+ *           The BlockCache monitor is a leaf, never held across disk I/O,
+ *           and so are the list of views of an entry and each MappedView.
  * @author  Brendan Sweeney, SID 1161836; Chris Grass
  * @date    December 14, 2012
  */
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
 public class FileSystem {
     public final static int SEEK_SET = 0;
     public final static int SEEK_CUR = 1;
     public final static int SEEK_END = 2;
+    public final static int SEEK_DATA = 3;
+    public final static int SEEK_HOLE = 4;
+    
+    public final static int LOCK_UN = 0;    // give back explicit ranges
+    public final static int LOCK_SH = 1;    // shared range
+    public final static int LOCK_EX = 2;    // exclusive range
+    public final static int LOCK_NB = 4;    // fail rather than wait
     
     public final static int DEFAULT_BLOCKS = 1000;
     public final static int DEFAULT_FILES  = 48;
     
+    private final static int maxReadAhead = 16; // blocks prefetched at most
+    private final static int copyBlocks   = 8;  // blocks moved per copy pass
+    private final static int stripeCount  = 64; // a power of two
+    
     private SuperBlock superblock;
     private Directory  directory;
     private FileTable  filetable;
+    private Reclaimer  reclaimer;
+    private BlockCache cache;       // blocks read ahead of their readers
+    private BlockStripe[] stripes;  // serialize writes to the same block
+    private ConcurrentHashMap<FileTableEntry, ReadAhead> streams;
+    private ConcurrentHashMap<FileTableEntry, WriteBuffer> buffers;
+    private ConcurrentHashMap<FileTableEntry, ArrayList<MappedView>> maps;
     
     
     /**
@@ -34,31 +79,37 @@ public class FileSystem {
     public FileSystem(int diskBlocks) {
         superblock  = new SuperBlock(diskBlocks);
         directory   = new Directory(superblock.inodeBlocks);
-        filetable   = new FileTable(directory);
-        
-        // ensure directory has been written to disk
-        if (superblock.freeList ==
-                superblock.inodeBlocks /
-                (Disk.blockSize / Inode.iNodeSize) + 1) {
-            byte[] buffer = new byte[Disk.blockSize];
-            Inode dir     = new Inode();
-            dir.length    = 64;
-            dir.direct[0] = (short)superblock.freeList;
-            dir.toDisk((short)0);
-            System.arraycopy(directory.directory2bytes(), 0, buffer, 0, 64);
-            SysLib.rawwrite(superblock.freeList++, buffer);
-        } // end if (superblock.freeList ==...)
+        reclaimer   = new Reclaimer(superblock);
+        filetable   = new FileTable(directory, reclaimer);
+        reclaimer.start();
+        cache       = new BlockCache(superblock.totalBlocks);
+        streams     = new ConcurrentHashMap<FileTableEntry, ReadAhead>();
+        buffers     = new ConcurrentHashMap<FileTableEntry, WriteBuffer>();
+        maps        = new ConcurrentHashMap<FileTableEntry,
+                                            ArrayList<MappedView>>();
+        stripes     = new BlockStripe[stripeCount];
+        
+        for (int i = 0; i < stripeCount; ++i) {
+            stripes[i] = new BlockStripe();
+        } // end for (; i < stripeCount; )
         
-        FileTableEntry dirEnt = open("/", "r");
-        int dirSize = fsize(dirEnt);
+        cache.start();
         
-        if (dirSize > 0) {
-            byte[] dirData = new byte[dirSize];
-            read(dirEnt, dirData);
-            directory.bytes2directory(dirData);
-        } // end if (dirSize > 0)
+        // ensure root directory has been written to disk
+        if (superblock.formatted) {
+            Inode dir = new Inode();
+            dir.flag  = 0;
+            dir.toDisk((short)0);
+        } // end if (superblock.formatted)
         
-        close(dirEnt);
+        loadDirectory((short)0);
+        
+        // rewrite directories in the old layout before anything changes
+        if (superblock.version < SuperBlock.currentVersion) {
+            SysLib.cerr("Converting directories\n");
+            superblock.version = SuperBlock.currentVersion;
+            sync();
+        } // end if (superblock.version < SuperBlock.currentVersion)
     } // end constructor
     
     
@@ -76,7 +127,6 @@ public class FileSystem {
      */
     public boolean format(int files) {
         int inodesPerBlock = Disk.blockSize / Inode.iNodeSize;
-        byte[] buffer      = new byte[Disk.blockSize];
         
         // sanitize input
         if (files < 1) {
@@ -94,16 +144,17 @@ public class FileSystem {
             return false;
         } // end if (!filetable.fempty())
         
+        // let deleted files finish returning their blocks
+        reclaimer.drain();
+        cache.clear();
         superblock.inodeBlocks = files;
         superblock.freeList    = files / inodesPerBlock + 1;
     	superblock.format(DEFAULT_BLOCKS);
         directory = new Directory(files);
+        filetable = new FileTable(directory, reclaimer);
         Inode dir = new Inode();
-        dir.length    = 64;
-        dir.direct[0] = (short)superblock.freeList;
+        dir.flag  = 0;
         dir.toDisk((short)0);
-        System.arraycopy(directory.directory2bytes(), 0, buffer, 0, 64);
-        SysLib.rawwrite(superblock.freeList++, buffer);
         
         return true;
     } // end format(int)
@@ -122,10 +173,24 @@ public class FileSystem {
         if(ftEnt==null)
         	return null;
         
-     // if mode==w, release all blocks belonging to this file
-        if ( mode.compareTo("w")==0)
-        	if ( deallocAllBlocks( ftEnt ) == false )
+     // if mode==w, release all blocks belonging to this file once no other
+     // entry is reading or writing any part of it
+        if ( mode.compareTo("w")==0){
+        	//tails of others go stale; bytes they lose are truncated anyway
+        	flushFile(ftEnt, true);
+        	RangeLock ranges = filetable.ranges(ftEnt);
+        	RangeLock.Range whole =
+        			ranges.lock(ftEnt, 0, RangeLock.WHOLE, true, false);
+        	boolean freed;
+        	synchronized(ftEnt.inode){
+        		freed = deallocAllBlocks(ftEnt);
+        	}
+        	staleViews(ftEnt, 0, RangeLock.WHOLE);
+        	if (whole != null)
+        		ranges.release(whole);
+        	if ( freed == false )
                 return null;
+        }
         return ftEnt;
     } // end open(String, String)
     
@@ -134,16 +199,52 @@ public class FileSystem {
      * close().
      * @param  ftEnt
      * @return false on error, true on success.
+     * writes back any small writes still buffered for ftEnt first, and the
+     * changes made through every view mmap() returned for ftEnt, which are
+     * unmapped.
      */
     public final boolean close(FileTableEntry ftEnt) {
         if (ftEnt == null) {
             return false;
         } // end if (ftEnt == null)
+        boolean written = true;
+        ArrayList<MappedView> views = maps.remove(ftEnt);
+        MappedView[] unmapped = new MappedView[0];
+        if (views != null) {
+            synchronized (views) {
+                unmapped = views.toArray(unmapped);
+                views.clear();
+            } // end synchronized (views)
+        } // end if (views != null)
+        for (MappedView view : unmapped) {
+            view.unmap();
+            written = writeBack(view) && written;
+        } // end for (view : unmapped)
+        written = flush(ftEnt) && written;
+        buffers.remove(ftEnt);
+        streams.remove(ftEnt);
         //attempt to release ftEnt from filetable.
-        return filetable.ffree(ftEnt);
+        return filetable.ffree(ftEnt) && written;
     } // end close(FileTableEntry)
     
     
+    /**
+     * fsync().
+     * @param  ftEnt
+     * @return false on error, true on success.
+     * writes back the small writes buffered for ftEnt and its inode, so that
+     * everything written through ftEnt survives a crash. The tail block stays
+     * in the buffer, so appending to it does not read it back.
+     */
+    public final boolean fsync(FileTableEntry ftEnt) {
+        if (ftEnt == null) {
+            return false;
+        } // end if (ftEnt == null)
+        
+        return flush(ftEnt);
+    } // end fsync(FileTableEntry)
+    
+    
     /**
      * Returns the size of the file referenced by ftEnt, if it exists.
      * @param  ftEnt  File table entry of the file whose size is sought.
@@ -165,302 +266,818 @@ public class FileSystem {
      * @param  ftEnt = fileTableEntry calling read.
      * @param  buffer = byte array acting as buffer for read.
      * @return number of bytes read.
+     * reads block by block from the seek pointer up to the end of the file.
+     * Blocks that fall in a hole have no disk address and read as zeros
+     * without touching the disk. Whole blocks are read by the disk straight
+     * into buffer; only a partial first or last block goes through a bounce
+     * buffer. Blocks already read ahead are copied from the cache. The bytes
+     * to be read are locked shared for the length of the call, so only
+     * writers to the same bytes are excluded.
+     * 
+     * A read that starts where the previous one on ftEnt ended doubles the
+     * read-ahead window, up to maxReadAhead blocks, and the blocks past the
+     * end of this read are prefetched in the background; any other read
+     * or a seek closes the window again.
      */
     public int read(FileTableEntry ftEnt, byte buffer[]) {
     	//if bad pointer, return error
     	if (ftEnt == null)
             return Kernel.ERROR;
-    	int readLength = buffer.length; 				//total amount to read
-    	int origSeekPtr = ftEnt.seekPtr;				//original seek pointer
-    	
-    	//if bufferLength is larger than total file length minus seek location,
-    	//shorten total read length to match.
-    	if((ftEnt.inode.length-origSeekPtr)<readLength)
-    		readLength = ftEnt.inode.length-origSeekPtr;
-    	
-    	byte[] reader = new byte[512];
-    	
-    	//if reading single block of information.
-    	//should add logic for case when read size is small and overlaps two blocks
-    	//should also refactor this into single case below
-    	if(readLength<=512){
-    		int blockLoc = ftEnt.inode.findTargetBlock(origSeekPtr);
-    		SysLib.rawread(blockLoc, reader);
-        	System.arraycopy(reader, origSeekPtr%512, buffer, 0, readLength); //copy to buffer
-        	return readLength;
-    	}
-    	
-    	//if multiple blocks need to be read
-    	else{
-    		int bufferRead = 0;			//amount read so far
-    		int nextReadLength = 0;		//amount to read this iteration
-    		
-    		//while length of buffer being read is less than inode length
-    		//continue with next block address and add to buffer
-    		while(bufferRead < readLength){
-    			//butes left in file
-    			int bytesLeft = readLength-ftEnt.seekPtr;
-    			//if near end of file, shorten readLength
-    			if((bytesLeft)<(512))
-    	    		nextReadLength = bytesLeft;
-    			else
-    				nextReadLength = 512;
-    			//find block on disk based on current file offset
-    			int block = ftEnt.inode.findTargetBlock(bufferRead+origSeekPtr);
-        		SysLib.rawread(block, reader);				//read from disk
-        		//copy reader to current pointer in buffer
-        		System.arraycopy(reader, 0, buffer, bufferRead, nextReadLength);
-        		bufferRead += nextReadLength;
-        		ftEnt.seekPtr += nextReadLength;	//advance seek ptr
-    		}
-    		return bufferRead;
-    	}
+    	int start = ftEnt.seekPtr;
+    	int fileLength = ftEnt.inode.length;
+    	int bufferRead = readAt(ftEnt,
+    			IoVector.of(buffer, 0, buffer.length), start);
+    	if (bufferRead < 0)
+    		return Kernel.ERROR;
+    	ftEnt.seekPtr = start + bufferRead;		//advance seek ptr
+    	readAhead(ftEnt, start, fileLength);
+    	return bufferRead;
     } // end read(int, byte[])
     
     
+    /**
+     * pread().
+     * @param  ftEnt = fileTableEntry calling pread.
+     * @param  buffer = byte array acting as buffer for read.
+     * @param  start = position in buffer of the first byte read.
+     * @param  length = number of bytes to read at most.
+     * @param  offset = file offset of the first byte to read.
+     * @return number of bytes read, or an error if offset is negative or the
+     * bytes do not fit buffer.
+     * reads like read() but from offset into part of buffer, leaving the seek
+     * pointer and the read-ahead window of ftEnt alone, so threads sharing a
+     * descriptor can read different parts of the file at the same time.
+     */
+    public int pread(FileTableEntry ftEnt, byte buffer[], int start,
+                     int length, int offset) {
+    	if (ftEnt == null || offset < 0 || !IoVector.fits(buffer, start, length))
+            return Kernel.ERROR;
+    	return readAt(ftEnt, IoVector.of(buffer, start, length), offset);
+    } // end pread(FileTableEntry, byte[], int, int, int)
+    
+    
     /**
      * write().
      * @param  ftEnt = fileTableEntry reference calling write.
      * @param  buffer = buffer being written from.
      * @return number of bytes written during method.
-     * writes buffer to inode referenced in ftEnt. Should refactor "direct pointer"
-     * case and "indirect pointer" case into single block.
+     * writes buffer to inode referenced in ftEnt, block by block from the
+     * seek pointer. A block is allocated only when it is actually written, so
+     * seeking past the end of file and writing leaves a hole behind. The
+     * bytes to be written are locked exclusively for the length of the call;
+     * writers to disjoint ranges proceed in parallel and only serialize on the
+     * inode while allocating blocks and extending the length, and on a block
+     * they both write while it is read and written back.
+     * 
+     * A write shorter than a block that continues the bytes buffered for
+     * ftEnt, or comes when none are, is only copied into its write buffer.
+     * The buffer goes to disk when the write reaches the end of its block,
+     * when a write does not fit it, and on seek, close, fsync, sync or a read
+     * of the file, so records appended in small pieces cost one disk write
+     * per block. The buffer keeps the tail block it last wrote, so appending
+     * to it after an fsync does not read it back from disk unless another
+     * write reached the block in between. The inode is written back with the
+     * last flush before close, seek, fsync or sync.
      */
     public int write(FileTableEntry ftEnt, byte buffer[]) {
         if (ftEnt == null) {
             return Kernel.ERROR;
         } // end if (ftEnt == null)
         
-    	int fileLoc = ftEnt.seekPtr;
-    	int origSeekPtr = fileLoc;
-    	int buffSize = buffer.length;
-    	int numOfBlocks;
-    	//if starting at beginning of block, number of blocks has ratio vs buffSize
-    	if (fileLoc % 512 == 0)
-    		numOfBlocks = ((buffSize-1)/512)+1;
-    	//if straddling blocks, use seekPtr location + buffSize to find numOfBlocks
-    	else
-    		numOfBlocks = ((buffSize + (origSeekPtr % 512)-1)/512)+1;
-    	int nextBlockSize = 0;
-    	int bufferWritten = 0;
-    	String mode = ftEnt.mode;
-    	
-    	//while inside direct pointers
-    	for(int i = 0; i<numOfBlocks && fileLoc < 11*512; i++){
-    		
-    		//if last block or piece of last block in buffer
-    		if(i+1==numOfBlocks)
-    			nextBlockSize = buffSize%512;
-    		
-    		//if writing somewhere other than start of a block
-    		else if((fileLoc) % 512 != 0){
-    			//if first block of buffer and buffer > 2 blocks
-    			if(buffSize+origSeekPtr > 512)
-    				nextBlockSize = 512-origSeekPtr;
-    			//if only one block
-    			else
-    				nextBlockSize = buffSize;
-    			}
-    		//writing middle blocks
-    		else
-    			nextBlockSize = 512;
-    		
-    		byte[] writer = new byte[512];
-    		//find block on disk based on current offset
-    		short nextBlock = (short) ftEnt.inode.findTargetBlock(origSeekPtr+bufferWritten);
-    		
-    		//if outside existing boundary, register new block
-    		if(mode.equals("w")|| nextBlock==-1){
-    			nextBlock = (short) superblock.getFreeBlock();
-    			ftEnt.inode.registerTargetBlock(nextBlockSize, nextBlock);
-    		}
-    		else{ // inside current boundary, read block
-    			SysLib.rawread(nextBlock, writer);
-    		}
-    		
-    		//copy segment of buffer to writer
-        	System.arraycopy(buffer, bufferWritten, writer, (fileLoc)%512, nextBlockSize);
-        	//write buffer segment to nextFreeBlock on disk
-        	SysLib.rawwrite(nextBlock, writer);
-        	
-        	//increment pointers/accumulators
-        	ftEnt.seekPtr += nextBlockSize;
-        	bufferWritten += nextBlockSize;
-        	ftEnt.inode.length += nextBlockSize;
-        	//write inode to disk
-        	ftEnt.inode.toDisk(ftEnt.iNumber);
-        	fileLoc +=nextBlockSize;
-    	}
-    	if(bufferWritten==buffSize){			//if only direct blocks used
-    		return bufferWritten;
-    	}
-    	else{ //register index block and fill with rest of buffer
-    		int k = 0;
-    		int typeFlag =0;
-    		
-    		//if no indirect block registered, register one with next free block
-    		if(ftEnt.inode.indirect==-1){
-    			short indexBlock = (short) superblock.getFreeBlock();
-    			ftEnt.inode.registerIndexBlock(indexBlock);
-    		}
-    		
-    		//while buffer.length is less than bufferWritten,
-    		//continue writing to disk
-    		while(bufferWritten < buffer.length){
-    			//current seek pointer
-    			fileLoc = ftEnt.seekPtr;
-    			
-    			// if last block or first small block
-    			if (numOfBlocks-12 <= k){
-    				//if data after direct nodes
-    				if(numOfBlocks>11){
-    					nextBlockSize = buffSize-bufferWritten;
-    					typeFlag = 0;
-    				}
-    				//first node of data spanning two blocks
-    				else if((fileLoc) % 512 + buffSize > 512){
-    					nextBlockSize = 512-(fileLoc+512) % 512;
-    					typeFlag = 1;
-    				}
-    				else{//second node of data spanning two small blocks
-    					nextBlockSize = buffSize-bufferWritten;
-    					typeFlag = 2;
-    				}
-    			}
-        		else	//middle blocks
-        			nextBlockSize = 512;
-    			
-    			short nextBlock = (short) ftEnt.inode.findTargetBlock(origSeekPtr+bufferWritten);
-           		byte[] writer = new byte[512];
-           		
-           		//register new indirect block if outside current boundary
-           		if(mode.equals("w")|| nextBlock==-1){
-        			nextBlock = (short) superblock.getFreeBlock();
-        			ftEnt.inode.registerTargetBlock(nextBlockSize, nextBlock);
-        		}
-        		
-        		else{ // inside current boundary so find block
-        			SysLib.rawread(nextBlock, writer);
-        		}
-           		if(typeFlag == 0) //normal condition or last block piece
-           			System.arraycopy(buffer,bufferWritten,writer,
-           					(bufferWritten)%512,nextBlockSize);
-           	//first block in condition where data starts mid block and overlaps.
-           		else if(typeFlag ==1)
-           			System.arraycopy(buffer,bufferWritten,writer,
-           					origSeekPtr%512,nextBlockSize);
-           	//first block
-            		else
-            			System.arraycopy(buffer,bufferWritten,writer,
-            					0,nextBlockSize);
-            		SysLib.rawwrite(nextBlock,writer);
-            		
-            		//increment accumulators and write inode to disk
-            		ftEnt.seekPtr += nextBlockSize;
-            		bufferWritten += nextBlockSize;
-            		ftEnt.inode.length += nextBlockSize;
-            		ftEnt.inode.toDisk(ftEnt.iNumber);
-            		k++;
-        		}
-    			return bufferWritten;
-    		
-    	}
+        flushOthers(ftEnt);
+        WriteBuffer pending = buffers.get(ftEnt);
+        
+        if (pending == null) {
+            buffers.putIfAbsent(ftEnt, new WriteBuffer());
+            pending = buffers.get(ftEnt);
+        } // end if (pending == null)
+        
+        synchronized (pending) {
+            if (pending.fits(ftEnt, buffer.length)) {
+                // honor byte-range locks of others before taking the bytes
+                RangeLock.Range range = lockRange(ftEnt, ftEnt.seekPtr,
+                                                  buffer.length, true);
+                if (range == null)
+                    return Kernel.ERROR;
+                int staged = 0;
+                boolean flushed = true;
+                
+                // a record that runs past the block fills it, then starts
+                // the next one
+                while (staged < buffer.length && flushed) {
+                    staged += pending.stage(ftEnt, buffer, staged);
+                    
+                    if (pending.hi == Disk.blockSize) {
+                        flushed = flushBuffer(ftEnt, pending, false);
+                    } // end if (pending.hi == Disk.blockSize)
+                } // end while (staged < buffer.length...)
+                
+                filetable.ranges(ftEnt).release(range);
+                
+                synchronized (ftEnt.inode) {
+                    if (ftEnt.seekPtr > ftEnt.inode.length)
+                        ftEnt.inode.length = ftEnt.seekPtr;
+                } // end synchronized (ftEnt.inode)
+                
+                return flushed ? buffer.length : Kernel.ERROR;
+            } // end if (pending.fits(ftEnt, buffer.length))
+            
+            boolean flushed = flushBuffer(ftEnt, pending, false);
+            pending.forget();				//the block is written below
+            
+            if (!flushed) {
+                return Kernel.ERROR;
+            } // end if (!flushed)
+        } // end synchronized (pending)
+        
+    	int bufferWritten = writeAt(ftEnt,
+    			IoVector.of(buffer, 0, buffer.length), ftEnt.seekPtr);
+    	if (bufferWritten < 0)
+    		return Kernel.ERROR;
+    	ftEnt.seekPtr += bufferWritten;
+    	return bufferWritten;
     } // end write(int, byte[])
     
     
+    /**
+     * pwrite().
+     * @param  ftEnt = fileTableEntry reference calling pwrite.
+     * @param  buffer = buffer being written from.
+     * @param  start = position in buffer of the first byte written.
+     * @param  length = number of bytes to write.
+     * @param  offset = file offset of the first byte to write.
+     * @return number of bytes written, or an error if offset is negative or
+     * the bytes do not fit buffer.
+     * writes like write() but part of buffer at offset, leaving the seek
+     * pointer of ftEnt alone, so threads sharing a descriptor can write
+     * different parts of the file at the same time. pwrite() is never
+     * buffered; any small writes buffered for the file are flushed first.
+     */
+    public int pwrite(FileTableEntry ftEnt, byte buffer[], int start,
+                      int length, int offset) {
+    	if (ftEnt == null || offset < 0 || !IoVector.fits(buffer, start, length))
+            return Kernel.ERROR;
+    	if (!flushFile(ftEnt, true))
+    		return Kernel.ERROR;
+    	return writeAt(ftEnt, IoVector.of(buffer, start, length), offset);
+    } // end pwrite(FileTableEntry, byte[], int, int, int)
+    
+    
+    /**
+     * readv().
+     * @param  ftEnt = fileTableEntry calling readv.
+     * @param  buffers = byte arrays filled one after another.
+     * @return number of bytes read into all buffers together.
+     * reads like read() into a single buffer as long as all of buffers, in one
+     * pass over the file blocks; a block that straddles two buffers is read
+     * once and split between them.
+     */
+    public int readv(FileTableEntry ftEnt, byte buffers[][]) {
+    	if (ftEnt == null || buffers == null)
+            return Kernel.ERROR;
+    	int start = ftEnt.seekPtr;
+    	int fileLength = ftEnt.inode.length;
+    	int bufferRead = readAt(ftEnt, new IoVector(buffers), start);
+    	if (bufferRead < 0)
+    		return Kernel.ERROR;
+    	ftEnt.seekPtr = start + bufferRead;
+    	readAhead(ftEnt, start, fileLength);
+    	return bufferRead;
+    } // end readv(FileTableEntry, byte[][])
+    
+    
+    /**
+     * writev().
+     * @param  ftEnt = fileTableEntry reference calling writev.
+     * @param  buffers = byte arrays written one after another.
+     * @return number of bytes written from all buffers together.
+     * writes like write() from a single buffer holding all of buffers in
+     * order, without copying them into one; a block that straddles two
+     * buffers is read and written once. writev() is never buffered; any small
+     * writes buffered for the file are flushed first.
+     */
+    public int writev(FileTableEntry ftEnt, byte buffers[][]) {
+    	if (ftEnt == null || buffers == null)
+            return Kernel.ERROR;
+    	if (!flushFile(ftEnt, true))
+    		return Kernel.ERROR;
+    	int bufferWritten = writeAt(ftEnt, new IoVector(buffers),
+    			ftEnt.seekPtr);
+    	if (bufferWritten < 0)
+    		return Kernel.ERROR;
+    	ftEnt.seekPtr += bufferWritten;
+    	return bufferWritten;
+    } // end writev(FileTableEntry, byte[][])
+    
+    
     /**
      * seek().
      * @param  ftEnt
      * @param  offset
      * @param  whence
-     * whence == SEEK_SET (0): if offset is positive and less than
-     * the size of the file, set the file's seek pointer to offset bytes from
-     * the beginning of the file and return success; otherwise return an error.
+     * whence == SEEK_SET (0): if offset is not negative, set the file's seek
+     * pointer to offset bytes from the beginning of the file and return
+     * success; otherwise return an error. The seek pointer may lie beyond the
+     * end of the file; a later write there leaves a hole.
+     * 
+     * whence == SEEK_CUR (1): offset is added to the current seek pointer, and
+     * the new seek pointer position is the value returned if it is not
+     * negative; otherwise return an error.
+     * 
+     * whence == SEEK_END (2): set the file's seek pointer to offset bytes from
+     * the end of the file if the result is not negative; otherwise return an
+     * error.
+     * 
+     * whence == SEEK_DATA (3): set the seek pointer to the first byte at or
+     * after offset that lies in an allocated block; return an error if no data
+     * remains before the end of the file. Small writes still buffered through
+     * any entry of the file are written back first, so their bytes count as
+     * data.
      * 
-     * whence == SEEK_CUR (1): if offset is positive and less than or equal to
-     * the number of bytes between the current seek pointer and the end of the
-     * file, offset is added to the current seek pointer, and the new seek
-     * pointer position is the value returned; if offset is negative and its
-     * absolute value is less than or equal to the number of bytes between the
-     * current seek pointer and the beginning of the file, offset is subtracted
-     * from the current seek pointer, and the new seek pointer position is the
-     * value returned; otherwise return an error.
+     * whence == SEEK_HOLE (4): set the seek pointer to the first byte at or
+     * after offset that lies in a hole, or to the end of the file if there is
+     * none; return an error if offset is not within the file.
      * 
-     * whence == SEEK_END (2): if offset is negative and less than the size of
-     * the file, set the file's seek pointer to offset bytes from the end of
-     * the file and return success; otherwise return an error.
+     * Small writes buffered for ftEnt are written back before the seek
+     * pointer moves; if they are lost, an error is returned and the seek
+     * pointer stays.
      */
     public int seek(FileTableEntry ftEnt, int offset, int whence) {
         if (ftEnt == null)
             return Kernel.ERROR;
         
-    	int currentPtr = ftEnt.seekPtr;
+    	//blocks of buffered writes are not mapped until they are flushed
+    	if((whence == SEEK_DATA || whence == SEEK_HOLE)
+    			&& !flushFile(ftEnt, false))
+    		return Kernel.ERROR;
+    	int newPtr;
     	int fileLength = ftEnt.inode.length;
     	switch(whence){
-    	//normal condition: mark seekPointer to offset
-    	case 0:
-    		if(offset < fileLength && offset >= 0 ){
-    			ftEnt.seekPtr=offset;
-    			return ftEnt.seekPtr;
-    		}
-    		else
+    	case SEEK_SET:
+    		newPtr = offset;
+    		break;
+    	case SEEK_CUR:
+    		newPtr = ftEnt.seekPtr + offset;
+    		break;
+    	case SEEK_END:
+    		newPtr = fileLength + offset;
+    		break;
+    	case SEEK_DATA:
+    		if(offset < 0 || offset >= fileLength)
     			return Kernel.ERROR;
-    	case 1:
-    		//normal condition: mark seekPointer to offset + currentPointer
-    		if(offset > 0 && offset <= fileLength - currentPtr){
-    			ftEnt.seekPtr = currentPtr + offset;
-    			return ftEnt.seekPtr;
-    		}
-    		//normal condition: mark seekPointer to currentPointer - offset
-    		else if(offset<0 && (offset*-1) <= currentPtr){
-    			ftEnt.seekPtr = currentPtr - offset;
-    			return ftEnt.seekPtr;
+    		synchronized(ftEnt.inode){
+    			newPtr = ftEnt.inode.findNextExtent(offset, true);
     		}
-    		else
+    		if(newPtr >= fileLength)				//only holes remain
     			return Kernel.ERROR;
-    	//normal condition: mark seekPointer to fileLength - offset
-    	case 2:
-    		if(offset < 0 && offset < fileLength){
-    			ftEnt.seekPtr = fileLength + offset;
-    			return ftEnt.seekPtr;
-    		}
-    		else
+    		break;
+    	case SEEK_HOLE:
+    		if(offset < 0 || offset >= fileLength)
     			return Kernel.ERROR;
+    		synchronized(ftEnt.inode){
+    			newPtr = ftEnt.inode.findNextExtent(offset, false);
+    		}
+    		if(newPtr < 0 || newPtr > fileLength)	//implicit hole at EOF
+    			newPtr = fileLength;
+    		break;
     	default:
     		return Kernel.ERROR;
     	}
+    	if(newPtr < 0 || newPtr >= Inode.maxFileSize)
+    		return Kernel.ERROR;
+    	if(!flush(ftEnt))							//buffer follows seekPtr
+    		return Kernel.ERROR;
+    	ftEnt.seekPtr = newPtr;
+    	ReadAhead stream = streams.get(ftEnt);
+    	if (stream != null)						//no longer sequential
+    		stream.window = stream.next = 0;
+    	return ftEnt.seekPtr;
     } // end seek(FileTableEntry, int, int)
     
     
+    /**
+     * lock().
+     * @param  ftEnt
+     * @param  offset = first byte of the range.
+     * @param  length = bytes in the range; 0 reaches past any end of file.
+     * @param  type = LOCK_SH, LOCK_EX or LOCK_UN, optionally or'ed with
+     * LOCK_NB.
+     * @return 0 on success, -1 on error or if LOCK_NB was given and another
+     * entry holds a conflicting range.
+     * LOCK_SH and LOCK_EX take an explicit range that ftEnt holds across calls
+     * until it is unlocked or ftEnt is closed; reads and writes through ftEnt
+     * never conflict with it. LOCK_UN gives back every explicit range of ftEnt
+     * that overlaps the one given.
+     */
+    public int lock(FileTableEntry ftEnt, int offset, int length, int type) {
+        if (ftEnt == null || offset < 0 || length < 0)
+            return Kernel.ERROR;
+        
+        RangeLock ranges = filetable.ranges(ftEnt);
+        int end = (length == 0 || offset + length < 0)
+                ? RangeLock.WHOLE : offset + length;
+        boolean exclusive;
+        
+        switch(type & ~LOCK_NB){
+        case LOCK_UN:
+            ranges.unlock(ftEnt, offset, end);
+            return Kernel.OK;
+        case LOCK_SH:
+            exclusive = false;
+            break;
+        case LOCK_EX:
+            exclusive = true;
+            break;
+        default:
+            return Kernel.ERROR;
+        }
+        
+        RangeLock.Range range = (type & LOCK_NB) != 0
+                ? ranges.tryLock(ftEnt, offset, end, exclusive, true)
+                : ranges.lock(ftEnt, offset, end, exclusive, true);
+        return range == null ? Kernel.ERROR : Kernel.OK;
+    } // end lock(FileTableEntry, int, int, int)
+    
+    
+    /**
+     * fallocate().
+     * @param  ftEnt
+     * @param  length
+     * @return 0 on success, -1 on error.
+     * reserves a disk block for every hole in the first length bytes of the
+     * file and extends the file to length bytes if it is shorter. Nothing is
+     * written to the blocks: they read as zeros and are only written by the
+     * first write that lands in them, which then needs no allocation. The
+     * blocks are taken from the free list in one go, in list order, so a
+     * file reserved on a fresh disk is laid out contiguously. Either every
+     * hole gets a block or none does. Small writes buffered for the file are
+     * written back first, and readers and writers of the file are waited for.
+     */
+    public int fallocate(FileTableEntry ftEnt, int length) {
+        if (ftEnt == null || length < 0 || length > Inode.maxFileSize) {
+            return Kernel.ERROR;
+        } // end if (ftEnt == null...)
+        
+        if (!flushFile(ftEnt, true)) {				//tails go stale
+            return Kernel.ERROR;
+        } // end if (!flushFile(ftEnt, true))
+        
+        RangeLock ranges = filetable.ranges(ftEnt);
+        RangeLock.Range range = ranges.lock(ftEnt, 0, RangeLock.WHOLE, true,
+                                            false);
+        int   count  = (length + Disk.blockSize - 1) / Disk.blockSize;
+        short map[]  = new short[count];
+        Inode inode  = ftEnt.inode;
+        int   result = Kernel.OK;
+        
+        synchronized (inode) {
+            int holes = 0;
+            int indexBlock = -1;                    // taken by this call
+            inode.mapBlocks(0, map);
+            
+            for (int i = 0; i < count; ++i) {
+                if (map[i] == -1) {
+                    ++holes;
+                } // end if (map[i] == -1)
+            } // end for (; i < count; )
+            
+            if (count > Inode.directSize && inode.indirect == -1) {
+                indexBlock = getFreeBlock();
+                
+                if (indexBlock < 0) {
+                    result = Kernel.ERROR;
+                } else {
+                    inode.registerIndexBlock((short)indexBlock);
+                } // end if (indexBlock < 0)
+            } else if (count > Inode.directSize
+                       && superblock.isShared(inode.indirect)
+                       && !unshareIndex(inode)) {
+                result = Kernel.ERROR;
+            } // end if (count > Inode.directSize...)
+            
+            int blocks[] = new int[holes];
+            int got      = 0;
+            
+            if (result == Kernel.OK) {
+                got = superblock.getFreeBlocks(blocks);
+            } // end if (result == Kernel.OK)
+            
+            while (result == Kernel.OK && got < holes) {
+                int block = getFreeBlock();
+                
+                if (block < 0) {
+                    result = Kernel.ERROR;
+                } else {
+                    blocks[got++] = block;
+                } // end if (block < 0)
+            } // end while (result == Kernel.OK...)
+            
+            if (result == Kernel.OK) {
+                Arrays.sort(blocks);
+                inode.reserveBlocks(0, count, blocks);
+                
+                if (length > inode.length) {
+                    inode.length = length;
+                } // end if (length > inode.length)
+            } else {
+                for (int i = 0; i < got; ++i) {
+                    superblock.returnBlock(blocks[i]);
+                } // end for (; i < got; )
+                
+                if (indexBlock >= 0) {
+                    BlockPool.give(inode.unregisterIndexBlock());
+                    superblock.returnBlock(indexBlock);
+                } // end if (indexBlock >= 0)
+            } // end if (result == Kernel.OK)
+            
+            inode.toDisk(ftEnt.iNumber);            // an index may be unshared
+        } // end synchronized (inode)
+        
+        if (range != null) {
+            ranges.release(range);
+        } // end if (range != null)
+        
+        return result;
+    } // end fallocate(FileTableEntry, int)
+    
+    
+    /**
+     * ftruncate().
+     * @param  ftEnt
+     * @param  length
+     * @return 0 on success, -1 on error.
+     * sets the length of the file to length bytes. Shrinking frees only the
+     * blocks wholly past the new end and zeroes the rest of the last block,
+     * so that growing the file again reads zeros there. Growing leaves a
+     * hole. Seek pointers are not moved. Other entries that are reading or
+     * writing past the new end are waited for. A last block or index block
+     * shared with a clone is copied first; if no block is left for the copy,
+     * the length is not changed.
+     */
+    public int ftruncate(FileTableEntry ftEnt, int length) {
+        if (ftEnt == null || length < 0 || length > Inode.maxFileSize) {
+            return Kernel.ERROR;
+        } // end if (ftEnt == null...)
+        
+        if (!flushFile(ftEnt, true)) {				//tails go stale
+            return Kernel.ERROR;
+        } // end if (!flushFile(ftEnt, true))
+        
+        RangeLock ranges = filetable.ranges(ftEnt);
+        RangeLock.Range range = ranges.lock(ftEnt, length, RangeLock.WHOLE,
+                                            true, false);
+        BlockStripe stripe = stripe(ftEnt, length);	//the last block
+        Inode inode  = ftEnt.inode;
+        int   result = Kernel.OK;
+        
+        synchronized (stripe) {
+            synchronized (inode) {
+                if (length < inode.length) {
+                    int first = (length + Disk.blockSize - 1) / Disk.blockSize;
+                    int tail  = inode.findTargetBlock(length);
+                    
+                    if (length % Disk.blockSize != 0 && tail >= 0) {
+                        byte[] block = BlockPool.take();
+                        
+                        SysLib.rawread(tail, block);
+                        Arrays.fill(block, length % Disk.blockSize,
+                                    Disk.blockSize, (byte)0);
+                        
+                        if (!writable(inode, length, tail)) {
+                            tail = allocBlock(inode, length);	//shared tail
+                        } // end if (!writable(inode, length, tail))
+                        
+                        if (tail >= 0) {
+                            SysLib.rawwrite(tail, block);
+                            cache.invalidate(tail);
+                            stripe.version++;
+                        } else {
+                            result = Kernel.ERROR;
+                        } // end if (tail >= 0)
+                        
+                        BlockPool.give(block);
+                    } // end if (length % Disk.blockSize != 0...)
+                    
+                    if (result == Kernel.OK && !deallocBlocks(inode, first)) {
+                        result = Kernel.ERROR;
+                    } // end if (result == Kernel.OK...)
+                } // end if (length < inode.length)
+                
+                if (result == Kernel.OK) {
+                    inode.length = length;
+                } // end if (result == Kernel.OK)
+                
+                inode.toDisk(ftEnt.iNumber);
+            } // end synchronized (inode)
+        } // end synchronized (stripe)
+        
+        staleViews(ftEnt, length, RangeLock.WHOLE);
+        
+        if (range != null) {
+            ranges.release(range);
+        } // end if (range != null)
+        
+        return result;
+    } // end ftruncate(FileTableEntry, int)
+    
+    
+    /**
+     * clone().
+     * @param  source
+     * @param  target
+     * @return true on success, false on error.
+     * makes target a copy of source without copying any data: target is
+     * created or truncated, then given the block pointers and length of
+     * source, and every block, written or reserved, gains a reference. Either
+     * file gets a block of its own only when it writes one that is shared, so
+     * writes to one are never seen through the other. Small writes buffered
+     * for source are written back first; writers of either file are waited
+     * for. A directory cannot be cloned.
+     */
+    public boolean clone(String source, String target) {
+        FileTableEntry from = filetable.falloc(source, "r");
+        
+        if (from == null) {
+            return false;
+        } // end if (from == null)
+        
+        boolean distinct;
+        
+        synchronized (directory) {
+            distinct = !directory.isDirectory(from.iNumber)
+                       && directory.namei(target) != from.iNumber;
+        } // end synchronized (directory)
+        
+        // while from is open, no other name can be given its iNumber
+        FileTableEntry to = distinct ? open(target, "w") : null;
+        
+        if (to == null || !flushFile(from, false)) {
+            close(from);
+            
+            if (to != null) {
+                close(to);
+            } // end if (to != null)
+            
+            return false;
+        } // end if (to == null...)
+        
+        // waited for in iNumber order, so opposite clones cannot deadlock
+        RangeLock.Range reading = null;
+        RangeLock.Range writing;
+        
+        if (from.iNumber < to.iNumber) {
+            reading = filetable.ranges(from).lock(from, 0, RangeLock.WHOLE,
+                                                  false, false);
+        } // end if (from.iNumber < to.iNumber)
+        
+        writing = filetable.ranges(to).lock(to, 0, RangeLock.WHOLE, true,
+                                            false);
+        
+        if (from.iNumber > to.iNumber) {
+            reading = filetable.ranges(from).lock(from, 0, RangeLock.WHOLE,
+                                                  false, false);
+        } // end if (from.iNumber > to.iNumber)
+        
+        short direct[] = new short[Inode.directSize];
+        short indirect;
+        int   length;
+        int   shared   = 0;                     // direct pointers shared
+        boolean result = false;
+        
+        synchronized (from.inode) {
+            indirect = from.inode.indirect;
+            length   = from.inode.length;
+            System.arraycopy(from.inode.direct, 0, direct, 0,
+                             Inode.directSize);
+            
+            while (shared < Inode.directSize
+                    && (direct[shared] == -1
+                        || superblock.share(Inode.blockOf(direct[shared])))) {
+                ++shared;
+            } // end while (shared < Inode.directSize...)
+            
+            // blocks past the direct pointers are shared with the index
+            if (shared == Inode.directSize
+                    && (indirect == -1 || superblock.share(indirect))) {
+                result = true;
+            } // end if (shared == Inode.directSize...)
+        } // end synchronized (from.inode)
+        
+        if (result) {
+            synchronized (to.inode) {
+                System.arraycopy(direct, 0, to.inode.direct, 0,
+                                 Inode.directSize);
+                to.inode.indirect = indirect;
+                to.inode.length   = length;
+                to.inode.toDisk(to.iNumber);
+            } // end synchronized (to.inode)
+            
+            staleViews(to, 0, RangeLock.WHOLE);
+        } else {
+            for (int i = 0; i < shared; ++i) {
+                if (direct[i] != -1) {
+                    superblock.returnBlock(Inode.blockOf(direct[i]));
+                } // end if (direct[i] != -1)
+            } // end for (; i < shared; )
+        } // end if (result)
+        
+        if (reading != null) {
+            filetable.ranges(from).release(reading);
+        } // end if (reading != null)
+        
+        if (writing != null) {
+            filetable.ranges(to).release(writing);
+        } // end if (writing != null)
+        
+        close(from);
+        close(to);
+        return result;
+    } // end clone(String, String)
+    
+    
+    /**
+     * mmap().
+     * @param  ftEnt = fileTableEntry being mapped.
+     * @param  offset = file offset of the first byte mapped.
+     * @param  length = number of bytes mapped.
+     * @return a view of the bytes, or null on error.
+     * reads nothing yet: each block is read into the view, through the
+     * read-ahead cache, the first time one of its bytes is accessed, so that
+     * later lookups in it are array accesses with no system call and no
+     * copy. Bytes past the end of the file read as zeros. Blocks changed
+     * through the view are marked dirty and written back whole on msync(),
+     * munmap() or close(ftEnt). A write through any entry of the file makes
+     * the clean blocks of the view it reaches stale, so that they are read
+     * again. The view is read-only if ftEnt was opened for reading only.
+     */
+    public MappedView mmap(FileTableEntry ftEnt, int offset, int length) {
+        if (ftEnt == null || offset < 0 || length <= 0
+                || length > Inode.maxFileSize - offset) {
+            return null;
+        } // end if (ftEnt == null...)
+        
+        MappedView view = new MappedView(this, ftEnt, offset, length,
+                                         ftEnt.mode.compareTo("r") != 0);
+        ArrayList<MappedView> views = maps.get(ftEnt);
+        
+        if (views == null) {
+            maps.putIfAbsent(ftEnt, new ArrayList<MappedView>());
+            views = maps.get(ftEnt);
+        } // end if (views == null)
+        
+        synchronized (views) {
+            views.add(view);
+        } // end synchronized (views)
+        
+        return view;
+    } // end mmap(FileTableEntry, int, int)
+    
+    
+    /**
+     * msync().
+     * @param  view = view returned by mmap().
+     * @return true on success, false on error.
+     * writes the blocks changed through view since it was mapped or last
+     * synced back to its file. The view stays mapped.
+     */
+    public boolean msync(MappedView view) {
+        return findMapping(view, false) && writeBack(view);
+    } // end msync(MappedView)
+    
+    
+    /**
+     * munmap().
+     * @param  view = view returned by mmap().
+     * @return true on success, false on error.
+     * writes back the blocks changed through view, like msync(), and unmaps
+     * it. Changes made to view afterward never reach the file, and blocks
+     * not read by then can no longer be.
+     */
+    public boolean munmap(MappedView view) {
+        if (!findMapping(view, true)) {
+            return false;
+        } // end if (!findMapping(view, true))
+        
+        view.unmap();
+        return writeBack(view);
+    } // end munmap(MappedView)
+    
+    
+    /**
+     * copyFileRange().
+     * @param  from = fileTableEntry read from.
+     * @param  to = fileTableEntry written to.
+     * @param  length = number of bytes to copy at most.
+     * @return number of bytes copied, or an error if the bytes would overlap
+     * in one file.
+     * copies bytes from the seek pointer of from to the seek pointer of to,
+     * advancing both, until length bytes are copied or from reaches its end.
+     * The bytes move copyBlocks blocks at a time through block arrays of the
+     * kernel, never through a buffer of the caller; whole blocks are read
+     * into and written from those arrays directly, and blocks of from are
+     * read ahead while the previous ones are written.
+     */
+    public int copyFileRange(FileTableEntry from, FileTableEntry to,
+                             int length) {
+        if (from == null || to == null || length < 0) {
+            return Kernel.ERROR;
+        } // end if (from == null...)
+        
+        if (from.iNumber == to.iNumber
+                && Math.abs(from.seekPtr - to.seekPtr) < length) {
+            return Kernel.ERROR;
+        } // end if (from.iNumber == to.iNumber...)
+        
+        if (!flushFile(to, true)) {
+            return Kernel.ERROR;
+        } // end if (!flushFile(to, true))
+        
+        return transfer(from, to, null, length);
+    } // end copyFileRange(FileTableEntry, FileTableEntry, int)
+    
+    
+    /**
+     * sendfile().
+     * @param  from = fileTableEntry read from.
+     * @param  out = stream the bytes are printed to.
+     * @param  length = number of bytes to send at most.
+     * @return number of bytes sent, or an error.
+     * sends bytes from the seek pointer of from to out, as the kernel does
+     * for STDOUT and STDERR, advancing the seek pointer, until length bytes
+     * are sent or from reaches its end. The bytes move like copyFileRange().
+     */
+    public int sendfile(FileTableEntry from, PrintStream out, int length) {
+        if (from == null || out == null || length < 0) {
+            return Kernel.ERROR;
+        } // end if (from == null...)
+        
+        return transfer(from, null, out, length);
+    } // end sendfile(FileTableEntry, PrintStream, int)
+    
+    
     /**
      * delete().
      * @param  fileName representing file to be deleted.
      * @return true on success, false on failure.
-     * opens a file with fileName in order to retrieve ftEnt referencing Inode.
-     * Immediately closes ftEnt but retains reference. Sets Inode flag==-1 so
-     * no other threads can open.
-     * 
-     * While other threads have file open, busy wait.
+     * removes fileName from the directory at once, so that no thread can open
+     * it again. A directory may only be deleted once it is empty.
      * 
-     * Once all other threads have closed, deallocate blocks, return iNumber to
-     * freeList, and then write empty inode to disk.
+     * Threads that have the file open keep using it; the inode is marked
+     * deleted (flag==-1) and the last close hands it to the reclaimer. An
+     * unopened file is handed over immediately. The reclaimer returns its
+     * blocks to the freeList in the background and then frees the iNumber,
+     * so delete never waits for other threads or for the blocks.
      */
     public boolean delete(String fileName) {
-        FileTableEntry ftEnt = open(fileName, "r");
-        close(ftEnt);
-        ftEnt.inode.flag = -1;
-        while(ftEnt.inode.count > 0)
-            ;
-        deallocAllBlocks(ftEnt);
-        directory.ifree(ftEnt.iNumber);
-        ftEnt.inode.toDisk(ftEnt.iNumber);
-        return true;
+        return filetable.unlink(fileName);
     } // end delete(String)
     
     
+    /**
+     * Creates an empty directory.
+     * @param  path  The path of the directory to create.
+     * @pre    Every component of path but the last names an existing
+     *          directory; the last does not exist yet.
+     * @post   The directory exists with an empty inode of its own; its parent
+     *          will be rewritten at the next sync.
+     * @return true if the directory was created; false otherwise.
+     */
+    public boolean mkdir(String path) {
+        return filetable.mkdir(path) >= 0;
+    } // end mkdir(String)
+    
+    
+    /**
+     * Lists the entries of a directory in batches, straight from the
+     *  in-memory Directory.
+     * @param  path  The path of the directory to list.
+     * @param  cursor  0 to start a listing, or the value returned by the
+     *                  previous call.
+     * @param  names  Receives the next names in name order; slots past the
+     *                 last name are set to null.
+     * @pre    names is not empty.
+     * @post   None.
+     * @return The cursor for the next batch; 0 if the listing is complete;
+     *          ERROR code if path is not a directory or cursor is invalid.
+     */
+    public int readdir(String path, int cursor, String[] names) {
+        synchronized (directory) {
+            short iNumber = directory.namei(path);
+            
+            if (iNumber < 0 || names == null) {
+                return Kernel.ERROR;
+            } // end if (iNumber < 0...)
+            
+            return directory.readdir(iNumber, cursor, names);
+        } // end synchronized (directory)
+    } // end readdir(String, int, String[])
+    
+    
     /**
      * Writes file system information to disk if there are no threads accessing
-     *  it.
+     *  it. Only directories whose entries changed are rewritten. Buffered
+     *  bytes that cannot be written are reported lost to their entries, since
+     *  the kernel takes false to mean the disk is still in use.
      * @pre    No threads are accessing files in this file system.
      * @post   The superblock and directory have been written to persistent
      *          storage.
@@ -468,44 +1085,1155 @@ public class FileSystem {
      *          false otherwise.
      */
     public boolean sync() {
+        for (java.util.Map.Entry<FileTableEntry, WriteBuffer> e
+                : buffers.entrySet()) {
+            synchronized (e.getValue()) {
+                if (!flushBuffer(e.getKey(), e.getValue(), true)) {
+                    e.getValue().lost = true;
+                } // end if (!flushBuffer(e.getKey()...))
+            } // end synchronized (e.getValue())
+        } // end for (e : buffers.entrySet())
+        
         if (!filetable.fempty()) {
             return false;
         } // end if (!filetable.fempty())
         
-        superblock.sync();
-        FileTableEntry dirEnt = open("/", "w");
-        write(dirEnt, directory.directory2bytes());
-        close(dirEnt);
+        synchronized (directory) {
+            for (short dirInumber : directory.takeDirty()) {
+                storeDirectory(dirInumber);
+            } // end for (dirInumber : directory.takeDirty())
+        } // end synchronized (directory)
         
+        // the free list is only complete once pending deletes are reclaimed
+        reclaimer.drain();
+        superblock.sync();
         return true;
     } // end sync()
     
     
+    /**
+     * Reads the file of a directory into the Directory, followed by the files
+     *  of all of its subdirectories. The entry used is never opened, so it
+     *  bypasses the read-ahead that read() would keep for it. A disk from
+     *  before directory files had a layout version is read in the old
+     *  layout.
+     * @param  dirInumber  The inode number of the directory to load.
+     * @pre    dirInumber names a directory whose file is on disk.
+     * @post   The directory and everything below it are present in memory.
+     */
+    private void loadDirectory(short dirInumber) {
+        FileTableEntry dirEnt =
+                new FileTableEntry(new Inode(dirInumber), dirInumber, "r");
+        byte[] dirData = new byte[fsize(dirEnt)];
+        
+        readAt(dirEnt, new IoVector(dirData), 0);
+        
+        if (superblock.version < SuperBlock.currentVersion) {
+            directory.legacy2directory(dirInumber, dirData);
+        } else {
+            directory.bytes2directory(dirInumber, dirData);
+        } // end if (superblock.version < SuperBlock.currentVersion)
+        
+        for (short subdir : directory.subdirectories(dirInumber)) {
+            loadDirectory(subdir);
+        } // end for (subdir : directory.subdirectories(dirInumber))
+    } // end loadDirectory(short)
+    
+    
+    /**
+     * Writes the changed blocks of a directory's file in place. Blocks that
+     *  already exist are overwritten directly; new blocks are appended
+     *  without the write buffer that write() would keep for the entry.
+     * @param  dirInumber  The inode number of the directory to store.
+     * @pre    No thread has the directory open.
+     * @post   Every block of the directory's file matches its entries.
+     */
+    private void storeDirectory(short dirInumber) {
+        FileTableEntry dirEnt =
+                new FileTableEntry(new Inode(dirInumber), dirInumber, "w");
+        byte[] buffer = BlockPool.take();
+        
+        for (int block : directory.takeDirtyBlocks(dirInumber)) {
+            if (!directory.block2bytes(dirInumber, block, buffer)) {
+                continue;
+            } // end if (!directory.block2bytes(dirInumber...)
+            
+            int target = dirEnt.inode.findTargetBlock(block * Disk.blockSize);
+            
+            if (target >= 0) {
+                SysLib.rawwrite(target, buffer);
+                cache.invalidate(target);
+            } else {
+                writeAt(dirEnt, new IoVector(buffer), block * Disk.blockSize);
+            } // end if (target >= 0)
+        } // end for (block : directory.takeDirtyBlocks(dirInumber))
+        
+        BlockPool.give(buffer);
+    } // end storeDirectory(short)
+    
+    
+    /**
+     * Writes back the bytes buffered for an entry, and its inode if any write
+     *  through the entry has not reached the inode on disk yet.
+     * @param  ftEnt  The entry to flush.
+     * @pre    None.
+     * @post   Every write made through ftEnt is on disk, or reported lost.
+     * @return true if successful; false if a buffered block could not be
+     *          allocated, now or by a flush since the last one through ftEnt.
+     */
+    private boolean flush(FileTableEntry ftEnt) {
+        WriteBuffer pending = buffers.get(ftEnt);
+        
+        if (pending == null) {
+            return true;
+        } // end if (pending == null)
+        
+        synchronized (pending) {
+            boolean result = flushBuffer(ftEnt, pending, true)
+                             && !pending.lost;
+            
+            pending.lost = false;
+            return result;
+        } // end synchronized (pending)
+    } // end flush(FileTableEntry)
+    
+    
+    /**
+     * Writes back the bytes buffered for every entry of a file, so that a
+     *  read of the file sees them or a write through ftEnt that bypasses its
+     *  buffer lands after them.
+     * @param  ftEnt   An entry of the file.
+     * @param  forget  Whether the file is about to change under the buffers,
+     *                  so that the tail blocks they keep go stale.
+     * @pre    The caller holds no write buffer.
+     * @post   No entry of the file has bytes buffered; if forget, none keeps
+     *          a tail block either. Bytes of another entry that could not be
+     *          written are reported lost to it as well.
+     * @return true if successful; false if a buffered block could not be
+     *          allocated, so the file lacks bytes written to it.
+     */
+    private boolean flushFile(FileTableEntry ftEnt, boolean forget) {
+        boolean result = true;
+        
+        if (!filetable.shared(ftEnt)) {
+            WriteBuffer pending = buffers.get(ftEnt);
+            
+            if (pending != null) {
+                synchronized (pending) {
+                    result = flushBuffer(ftEnt, pending, false);
+                    
+                    if (forget) {
+                        pending.forget();
+                    } // end if (forget)
+                } // end synchronized (pending)
+            } // end if (pending != null)
+            
+            return result;
+        } // end if (!filetable.shared(ftEnt))
+        
+        for (java.util.Map.Entry<FileTableEntry, WriteBuffer> e
+                : buffers.entrySet()) {
+            if (e.getKey().iNumber == ftEnt.iNumber) {
+                synchronized (e.getValue()) {
+                    if (!flushBuffer(e.getKey(), e.getValue(), false)) {
+                        e.getValue().lost |= e.getKey() != ftEnt;
+                        result = false;
+                    } // end if (!flushBuffer(e.getKey()...))
+                    
+                    if (forget) {
+                        e.getValue().forget();
+                    } // end if (forget)
+                } // end synchronized (e.getValue())
+            } // end if (e.getKey().iNumber == ftEnt.iNumber)
+        } // end for (e : buffers.entrySet())
+        
+        return result;
+    } // end flushFile(FileTableEntry, boolean)
+    
+    
+    /**
+     * Writes back the bytes buffered for the other entries of a file, so that
+     *  they cannot later overwrite a newer write through this entry, and
+     *  drops the tail blocks they keep.
+     * @param  ftEnt  The entry about to be written through.
+     * @pre    The caller holds no write buffer.
+     * @post   No other entry of the file has bytes buffered or a tail block;
+     *          bytes that could not be written are reported lost to their
+     *          entry.
+     */
+    private void flushOthers(FileTableEntry ftEnt) {
+        if (!filetable.shared(ftEnt)) {
+            return;
+        } // end if (!filetable.shared(ftEnt))
+        
+        for (java.util.Map.Entry<FileTableEntry, WriteBuffer> e
+                : buffers.entrySet()) {
+            if (e.getKey() != ftEnt && e.getKey().iNumber == ftEnt.iNumber) {
+                synchronized (e.getValue()) {
+                    if (!flushBuffer(e.getKey(), e.getValue(), false)) {
+                        e.getValue().lost = true;
+                    } // end if (!flushBuffer(e.getKey()...))
+                    
+                    e.getValue().forget();
+                } // end synchronized (e.getValue())
+            } // end if (e.getKey() != ftEnt...)
+        } // end for (e : buffers.entrySet())
+    } // end flushOthers(FileTableEntry)
+    
+    
+    /**
+     * Moves bytes from the seek pointer of one entry to either the seek
+     *  pointer of another or a stream, copyBlocks blocks at a time, for
+     *  copyFileRange() and sendfile().
+     * @param  from    The entry read from.
+     * @param  to      The entry written to; null to print to out.
+     * @param  out     The stream printed to if to is null.
+     * @param  length  The number of bytes to move at most.
+     * @pre    No bytes are buffered for to.
+     * @post   The seek pointers advanced by the bytes moved.
+     * @return The number of bytes moved, fewer than length at the end of
+     *          from or when to fills up; -1 if nothing was moved because a
+     *          wait for the bytes was interrupted.
+     */
+    private int transfer(FileTableEntry from, FileTableEntry to,
+                         PrintStream out, int length) {
+        byte[][] blocks = new byte[copyBlocks][];
+        int      total  = 0;
+        int      result = 0;
+        boolean  more   = true;
+        
+        for (int i = 0; i < copyBlocks; ++i) {
+            blocks[i] = BlockPool.take();
+        } // end for (; i < copyBlocks; )
+        
+        while (total < length && more) {
+            int count = Math.min(length - total, copyBlocks * Disk.blockSize);
+            int start = from.seekPtr;
+            int fileLength = from.inode.length;
+            
+            result = readAt(from, new IoVector(blocks).limit(count), start);
+            
+            if (result > 0 && to != null) {
+                result = writeAt(to, new IoVector(blocks).limit(result),
+                                 to.seekPtr);
+                to.seekPtr += Math.max(result, 0);
+            } else if (result > 0) {
+                for (int i = 0, left = result; left > 0; ++i) {
+                    out.write(blocks[i], 0, Math.min(left, Disk.blockSize));
+                    left -= Disk.blockSize;
+                } // end for (; left > 0; )
+            } // end if (result > 0...)
+            
+            if (result > 0) {
+                from.seekPtr = start + result;
+                total       += result;
+                readAhead(from, start, fileLength);
+            } // end if (result > 0)
+            
+            more = result == count;
+        } // end while (total < length...)
+        
+        if (out != null) {
+            out.flush();
+        } // end if (out != null)
+        
+        for (int i = 0; i < copyBlocks; ++i) {
+            BlockPool.give(blocks[i]);
+        } // end for (; i < copyBlocks; )
+        
+        return (total == 0 && result < 0) ? Kernel.ERROR : total;
+    } // end transfer(FileTableEntry, FileTableEntry, PrintStream, int)
+    
+    
+    /**
+     * Finds a view that mmap() returned among the mapped ones.
+     * @param  view    The view returned by mmap().
+     * @param  remove  Whether to take it off the views of its entry as well.
+     * @pre    None.
+     * @post   view is no longer listed if remove is true.
+     * @return true if view is mapped; false otherwise.
+     */
+    private boolean findMapping(MappedView view, boolean remove) {
+        ArrayList<MappedView> views = (view == null) ? null
+                                                     : maps.get(view.ftEnt);
+        
+        if (views == null) {
+            return false;
+        } // end if (views == null)
+        
+        synchronized (views) {
+            return remove ? views.remove(view) : views.contains(view);
+        } // end synchronized (views)
+    } // end findMapping(MappedView, boolean)
+    
+    
+    /**
+     * Writes the blocks of a view that changed since they were read or last
+     *  written back, each as a whole.
+     * @param  view  The view to write back.
+     * @pre    None.
+     * @post   The file holds every block of view that was dirty; none is.
+     * @return true if successful; false if the disk or file filled up,
+     *          here or for bytes buffered for the file.
+     */
+    private boolean writeBack(MappedView view) {
+        if (view.isReadOnly()) {
+            return true;
+        } // end if (view.isReadOnly())
+        
+        boolean result = flushFile(view.ftEnt, true);
+        byte[]  buffer = BlockPool.take();
+        
+        for (int block = view.nextDirty(0); block >= 0;
+                block = view.nextDirty(block + 1)) {
+            int count = view.takeDirty(block, buffer);
+            
+            if (writeAt(view.ftEnt, new IoVector(buffer, 0, count),
+                        view.offset + view.start(block)) != count) {
+                view.redirty(block);
+                result = false;
+            } // end if (writeAt(view.ftEnt...) != count)
+        } // end for (; block >= 0; )
+        
+        BlockPool.give(buffer);
+        return result;
+    } // end writeBack(MappedView)
+    
+    
+    /**
+     * Reads the bytes of a file for a block of a view that is accessed for
+     *  the first time or since it went stale.
+     * @param  ftEnt     The entry the view was mapped through.
+     * @param  position  The file offset of the first byte.
+     * @param  buffer    Receives the bytes.
+     * @param  count     The number of bytes to read.
+     * @pre    count bytes from position lie within one block.
+     * @post   buffer holds the bytes; those past the end of the file, or that
+     *          could not be read, are zeros.
+     */
+    void fill(FileTableEntry ftEnt, int position, byte buffer[], int count) {
+        Arrays.fill(buffer, 0, count, (byte)0);
+        readAt(ftEnt, new IoVector(buffer, 0, count), position);
+    } // end fill(FileTableEntry, int, byte[], int)
+    
+    
+    /**
+     * Makes the clean blocks that the views of a file hold of a byte range
+     *  stale, after the range was written on disk.
+     * @param  ftEnt  An entry of the file written.
+     * @param  start  The file offset of the first byte written.
+     * @param  end    One past the file offset of the last byte written.
+     * @pre    The bytes are on disk.
+     * @post   Each view of the file reads the range again when accessed,
+     *          except for its dirty blocks.
+     */
+    private void staleViews(FileTableEntry ftEnt, int start, int end) {
+        if (maps.isEmpty()) {
+            return;
+        } // end if (maps.isEmpty())
+        
+        for (java.util.Map.Entry<FileTableEntry, ArrayList<MappedView>> e
+                : maps.entrySet()) {
+            if (e.getKey().iNumber == ftEnt.iNumber) {
+                synchronized (e.getValue()) {
+                    for (int i = 0; i < e.getValue().size(); ++i) {
+                        e.getValue().get(i).stale(start, end);
+                    } // end for (; i < e.getValue().size(); )
+                } // end synchronized (e.getValue())
+            } // end if (e.getKey().iNumber == ftEnt.iNumber)
+        } // end for (e : maps.entrySet())
+    } // end staleViews(FileTableEntry, int, int)
+    
+    
+    /**
+     * Writes the bytes held by a write buffer into their block, allocating
+     *  the block if it is a hole. Only the buffered bytes change; a partly
+     *  buffered block that already exists is read first, unless the buffer
+     *  still holds it from its last flush and nothing else wrote it since.
+     *  Afterward the buffer holds the whole block as it is on disk, as the
+     *  tail for later writes.
+     * @param  ftEnt    The entry that owns the buffer.
+     * @param  pending  The buffer of ftEnt.
+     * @param  inode    Whether to write back the inode as well, if needed.
+     * @pre    The monitor of pending is held.
+     * @post   pending has no bytes to write.
+     * @return true if successful; false if the block could not be allocated,
+     *          in which case the buffered bytes are lost.
+     */
+    private boolean flushBuffer(FileTableEntry ftEnt, WriteBuffer pending,
+                                boolean inode) {
+        boolean result = true;
+        
+        if (pending.hi > pending.lo) {
+            int base = pending.index * Disk.blockSize;
+            int start = base + pending.lo;
+            int end   = base + pending.hi;
+            RangeLock ranges = filetable.ranges(ftEnt);
+            RangeLock.Range range = ranges.lock(ftEnt, start, end, true,
+                                                false);
+            BlockStripe stripe = stripe(ftEnt, base);
+            
+            synchronized (stripe) {
+                int block = ftEnt.inode.findTargetBlock(base);
+                
+                if (block < 0) {
+                    Arrays.fill(pending.data, 0, pending.lo, (byte)0);
+                    Arrays.fill(pending.data, pending.hi, Disk.blockSize,
+                                (byte)0);
+                } else if (!pending.isFull() && !(pending.image
+                           && pending.stamp == stripe.version)) {
+                    byte[] reader = BlockPool.take();
+                    
+                    SysLib.rawread(block, reader);
+                    System.arraycopy(reader, 0, pending.data, 0, pending.lo);
+                    System.arraycopy(reader, pending.hi, pending.data,
+                                     pending.hi, Disk.blockSize - pending.hi);
+                    BlockPool.give(reader);
+                } // end if (block < 0)
+                
+                if (!writable(ftEnt.inode, base, block)) {
+                    synchronized (ftEnt.inode) {
+                        block = allocBlock(ftEnt.inode, base);
+                    } // end synchronized (ftEnt.inode)
+                } // end if (!writable(ftEnt.inode...))
+                
+                if (block >= 0) {
+                    SysLib.rawwrite(block, pending.data);
+                    cache.invalidate(block);
+                    pending.lo = pending.hi = 0;
+                    pending.image = true;
+                    pending.stamp = ++stripe.version;
+                } else {
+                    result = false;
+                    pending.forget();
+                } // end if (block >= 0)
+            } // end synchronized (stripe)
+            
+            if (result) {
+                staleViews(ftEnt, start, end);
+            } // end if (result)
+            
+            if (range != null) {
+                ranges.release(range);
+            } // end if (range != null)
+            
+            pending.inodeDirty = true;
+        } // end if (pending.hi > pending.lo)
+        
+        if (inode && pending.inodeDirty) {
+            synchronized (ftEnt.inode) {
+                ftEnt.inode.toDisk(ftEnt.iNumber);
+            } // end synchronized (ftEnt.inode)
+            
+            pending.inodeDirty = false;
+        } // end if (inode && pending.inodeDirty)
+        
+        return result;
+    } // end flushBuffer(FileTableEntry, WriteBuffer, boolean)
+    
+    
+    /**
+     * Reads the bytes of a file from a given offset into one or more buffers,
+     *  as read(), pread() and readv() do, without moving the seek pointer.
+     * @param  ftEnt   The entry reading.
+     * @param  buffer  Receives the bytes read, buffer after buffer.
+     * @param  offset  The file offset of the first byte.
+     * @pre    offset is not negative; buffer is at its start.
+     * @post   buffer holds the bytes from offset up to its length or the end
+     *          of the file.
+     * @return The number of bytes read; -1 if the wait for the bytes was
+     *          interrupted or bytes buffered for the file were lost.
+     */
+    private int readAt(FileTableEntry ftEnt, IoVector buffer, int offset) {
+    	if(!flushFile(ftEnt, false))				//see buffered writes
+    		return Kernel.ERROR;
+    	RangeLock.Range range = lockRange(ftEnt, offset, buffer.length, false);
+    	if (range == null)
+    		return Kernel.ERROR;
+    	int fileLength = ftEnt.inode.length;
+    	int position = offset;
+    	int bufferRead = 0;							//amount read so far
+    	byte[] reader = null;						//bounce buffer, if needed
+    	
+    	//continue with next block address until buffer is full or EOF reached
+    	while(bufferRead < buffer.length && position < fileLength){
+    		int blockOffset = position % Disk.blockSize;
+    		//amount to read this iteration: rest of block, buffer, or file
+    		int nextReadLength = Math.min(Disk.blockSize - blockOffset,
+    				Math.min(buffer.length - bufferRead,
+    						fileLength - position));
+    		//find block on disk based on current file offset
+    		int block = ftEnt.inode.findTargetBlock(position);
+    		if(block < 0)								//hole, no disk I/O
+    			buffer.fill(nextReadLength);
+    		else if(nextReadLength == Disk.blockSize
+    				&& buffer.span() >= Disk.blockSize){	//whole block, no copy
+    			if(!cache.read(ftEnt.iNumber, position / Disk.blockSize,
+    					block, buffer.current(), buffer.position()))
+    				SysLib.rawread(block, buffer.current(), buffer.position());
+    			buffer.skip(Disk.blockSize);
+    		}
+    		else{
+    			if(reader == null)
+    				reader = BlockPool.take();
+    			if(!cache.read(ftEnt.iNumber, position / Disk.blockSize,
+    					block, reader, 0))
+    				SysLib.rawread(block, reader);		//read from disk
+    			//scatter reader to current pointer in buffer
+    			buffer.scatter(reader, blockOffset, nextReadLength);
+    		}
+    		bufferRead += nextReadLength;
+    		position += nextReadLength;
+    	}
+    	BlockPool.give(reader);
+    	filetable.ranges(ftEnt).release(range);
+    	return bufferRead;
+    } // end readAt(FileTableEntry, IoVector, int)
+    
+    
+    /**
+     * Writes one or more buffers into a file from a given offset, as write(),
+     *  pwrite() and writev() do, without moving the seek pointer or
+     *  buffering. Each block is read and written at most once, however the
+     *  bytes for it are split among the buffers. Writers of other bytes of
+     *  the same block wait while it is read and written back, so that
+     *  neither loses the bytes of the other.
+     * @param  ftEnt   The entry writing.
+     * @param  buffer  The bytes to write, buffer after buffer.
+     * @param  offset  The file offset of the first byte.
+     * @pre    offset is not negative; buffer is at its start; no bytes are
+     *          buffered for ftEnt.
+     * @post   The bytes written and the inode are on disk.
+     * @return The number of bytes written, fewer than buffer.length if the
+     *          disk or file filled up; -1 if the wait for the bytes was
+     *          interrupted.
+     */
+    private int writeAt(FileTableEntry ftEnt, IoVector buffer, int offset) {
+    	RangeLock.Range range = lockRange(ftEnt, offset, buffer.length, true);
+    	if (range == null)
+    		return Kernel.ERROR;
+
+    	int position = offset;
+    	int bufferWritten = 0;
+    	byte[] writer = BlockPool.take();
+    	
+    	while(bufferWritten < buffer.length){
+    		int blockOffset = position % Disk.blockSize;
+    		int nextBlockSize = Math.min(Disk.blockSize - blockOffset,
+    				buffer.length - bufferWritten);
+    		//writers of other bytes in the block wait until it is back
+    		BlockStripe stripe = stripe(ftEnt, position);
+    		synchronized(stripe){
+    			//find block on disk based on current offset
+    			int nextBlock = ftEnt.inode.findTargetBlock(position);
+    			
+    			if(nextBlock < 0)						//hole reads as zeros
+    				Arrays.fill(writer, (byte)0);
+    			else if(nextBlockSize < Disk.blockSize)	//partial, read it
+    				SysLib.rawread(nextBlock, writer);
+    			
+    			//if in a hole, past the end or shared with a clone, register
+    			//a block of its own
+    			if(!writable(ftEnt.inode, position, nextBlock)){
+    				synchronized(ftEnt.inode){
+    					nextBlock = allocBlock(ftEnt.inode, position);
+    				}
+    				if(nextBlock < 0)					//disk or file full
+    					break;
+    			}
+    			
+    			//a whole block that fills one buffer goes to disk from there
+    			if(nextBlockSize == Disk.blockSize && buffer.position() == 0
+    					&& buffer.current().length == Disk.blockSize){
+    				SysLib.rawwrite(nextBlock, buffer.current());
+    				buffer.skip(Disk.blockSize);
+    			}
+    			else{							//gather segment into writer
+    				buffer.gather(writer, blockOffset, nextBlockSize);
+    				SysLib.rawwrite(nextBlock, writer);
+    			}
+    			cache.invalidate(nextBlock);		//after the disk has it
+    			stripe.version++;					//buffered tails go stale
+    		}
+        	
+        	//increment pointers/accumulators
+        	position += nextBlockSize;
+        	bufferWritten += nextBlockSize;
+        	synchronized(ftEnt.inode){
+        		if(position > ftEnt.inode.length)
+        			ftEnt.inode.length = position;
+        	}
+    	}
+    	//write inode to disk
+    	synchronized(ftEnt.inode){
+    		ftEnt.inode.toDisk(ftEnt.iNumber);
+    	}
+    	BlockPool.give(writer);
+    	staleViews(ftEnt, offset, offset + bufferWritten);
+    	filetable.ranges(ftEnt).release(range);
+    	return bufferWritten;
+    } // end writeAt(FileTableEntry, IoVector, int)
+    
+    
+    /**
+     * Tracks sequential reading through an entry and prefetches the blocks
+     *  that are likely to be read next.
+     * @param  ftEnt       The entry that was just read through.
+     * @param  start       The seek pointer before the read.
+     * @param  fileLength  The length of the file during the read.
+     * @pre    ftEnt.seekPtr is one past the last byte read.
+     * @post   Up to the current window of blocks after ftEnt.seekPtr are
+     *          queued for prefetching if the reading is sequential.
+     */
+    private void readAhead(FileTableEntry ftEnt, int start, int fileLength) {
+        ReadAhead stream = streams.get(ftEnt);
+        
+        if (stream == null) {
+            stream = new ReadAhead();
+            streams.put(ftEnt, stream);
+        } // end if (stream == null)
+        
+        if (start != stream.next) {
+            stream.window = 0;
+        } else {
+            stream.window = Math.min(maxReadAhead,
+                                     Math.max(2, stream.window * 2));
+        } // end if (start != stream.next)
+        
+        stream.next = ftEnt.seekPtr;
+        int first = (ftEnt.seekPtr + Disk.blockSize - 1) / Disk.blockSize;
+        int last  = (fileLength - 1) / Disk.blockSize;
+        
+        if (stream.window == 0 || first > last) {
+            return;
+        } // end if (stream.window == 0...)
+        
+        int count;
+        
+        synchronized (ftEnt.inode) {
+            count = ftEnt.inode.mapBlocks(first * Disk.blockSize,
+                                          stream.blocks);
+        } // end synchronized (ftEnt.inode)
+        
+        count = Math.min(count, Math.min(stream.window, last - first + 1));
+        
+        for (int i = 0; i < count; ++i) {
+            if (stream.blocks[i] >= 0) {
+                cache.prefetch(ftEnt.iNumber, first + i, stream.blocks[i]);
+            } // end if (stream.blocks[i] >= 0)
+        } // end for (; i < count; )
+    } // end readAhead(FileTableEntry, int, int)
+    
+    
+    /**
+     * Locks the bytes that a read or write of a given length through an entry
+     *  would touch, starting at a given offset.
+     * @param  ftEnt      The entry reading or writing.
+     * @param  offset     The file offset of the first byte.
+     * @param  length     The number of bytes to be read or written.
+     * @param  exclusive  Whether the bytes are to be written.
+     * @pre    ftEnt is open.
+     * @post   The range is held by ftEnt until it is released.
+     * @return The range taken; null if the wait was interrupted.
+     */
+    private RangeLock.Range lockRange(FileTableEntry ftEnt, int offset,
+                                      int length, boolean exclusive) {
+        int end = offset + Math.max(length, 1);
+        
+        if (end < 0) {
+            end = RangeLock.WHOLE;
+        } // end if (end < 0)
+        
+        return filetable.ranges(ftEnt).lock(ftEnt, offset, end, exclusive,
+                                            false);
+    } // end lockRange(FileTableEntry, int, int, boolean)
+    
+    
+    /**
+     * Finds the stripe of the file block that holds a given offset. Blocks of
+     *  different files or far apart rarely share one.
+     * @param  ftEnt   An entry of the file.
+     * @param  offset  A file offset in the block.
+     * @pre    offset is not negative.
+     * @post   None.
+     * @return The stripe to hold while the block is read and written back.
+     */
+    private BlockStripe stripe(FileTableEntry ftEnt, int offset) {
+        int index = offset / Disk.blockSize;
+        
+        return stripes[(ftEnt.iNumber * 31 + index) & (stripeCount - 1)];
+    } // end stripe(FileTableEntry, int)
+    
+    
+    /**
+     * Takes a block from the free list. When the list is empty but deleted
+     *  files are still being reclaimed, waits for them and tries once more.
+     * @pre    None.
+     * @post   The block returned, if any, is no longer in the free list.
+     * @return The number of an unused block if one is available; -1
+     *          otherwise.
+     */
+    private int getFreeBlock() {
+        int block = superblock.getFreeBlock();
+        
+        if (block < 0) {
+            reclaimer.drain();
+            block = superblock.getFreeBlock();
+        } // end if (block < 0)
+        
+        return block;
+    } // end getFreeBlock()
+    
+    
+    /**
+     * Gives the block at the given offset of an inode a disk block of its
+     *  own that may be written in place. A hole gets a free block, after an
+     *  index block if the offset needs one. A block reserved there by
+     *  fallocate() is used instead, if no clone shares it. A block shared
+     *  with a clone is replaced by a free block and loses a reference; the
+     *  caller writes the old contents to the new block. An index block shared
+     *  with a clone is copied first.
+     * @param  inode  The inode that receives the block.
+     * @param  offset  File offset, in bytes, that the block will hold.
+     * @pre    The monitor of inode is held.
+     * @post   The block holding offset is private to inode; the inode is not
+     *          yet written back to disk.
+     * @return The number of the block if successful; -1 otherwise.
+     */
+    private int allocBlock(Inode inode, int offset) {
+        if (offset / Disk.blockSize >= Inode.directSize) {
+            if (inode.indirect == -1) {
+                int indexBlock = getFreeBlock();
+                
+                if (indexBlock < 0) {
+                    return Kernel.ERROR;
+                } // end if (indexBlock < 0)
+                
+                inode.registerIndexBlock((short)indexBlock);
+            } else if (superblock.isShared(inode.indirect)
+                       && !unshareIndex(inode)) {
+                return Kernel.ERROR;
+            } // end if (inode.indirect == -1)
+        } // end if (offset / Disk.blockSize >= Inode.directSize)
+        
+        int old = inode.findReservedBlock(offset);
+        
+        if (old >= 0 && !superblock.isShared(old)) {
+            inode.registerTargetBlock(offset, (short)old);
+            return old;
+        } // end if (old >= 0...)
+        
+        if (old < 0) {
+            old = inode.findTargetBlock(offset);
+            
+            if (old >= 0 && !superblock.isShared(old)) {
+                return old;
+            } // end if (old >= 0...)
+        } // end if (old < 0)
+        
+        int block = getFreeBlock();
+        
+        if (block < 0) {
+            return Kernel.ERROR;
+        } // end if (block < 0)
+        
+        if (old >= 0) {
+            inode.replaceTargetBlock(offset, (short)block);
+            superblock.returnBlock(old);		//the clone keeps it
+        } else if (inode.registerTargetBlock(offset, (short)block) != 0) {
+            superblock.returnBlock(block);
+            return Kernel.ERROR;
+        } // end if (old >= 0)
+        
+        return block;
+    } // end allocBlock(Inode, int)
+    
+    
+    /**
+     * Determines whether the block at the given offset of an inode may be
+     *  written in place: it is mapped, and neither it nor the index block
+     *  that maps it is shared with a clone.
+     * @param  inode   The inode of the file.
+     * @param  offset  File offset, in bytes, about to be written.
+     * @param  block   The block mapped at offset, or -1 for a hole.
+     * @pre    None.
+     * @post   None.
+     * @return true if block may be written; false if allocBlock() must be
+     *          called first.
+     */
+    private boolean writable(Inode inode, int offset, int block) {
+        return block >= 0 && !superblock.isShared(block)
+                && (offset / Disk.blockSize < Inode.directSize
+                    || !superblock.isShared(inode.indirect));
+    } // end writable(Inode, int, int)
+    
+    
+    /**
+     * Gives an inode an index block of its own in place of one it shares
+     *  with a clone. Every block the index maps gains a reference, since both
+     *  index blocks now map it.
+     * @param  inode  The inode whose index block is shared.
+     * @pre    The monitor of inode is held; its index block is shared.
+     * @post   inode.indirect is private to inode.
+     * @return true if successful; false if no block was free or a block has
+     *          too many references, in which case nothing changed.
+     */
+    private boolean unshareIndex(Inode inode) {
+        int copy = getFreeBlock();
+        
+        if (copy < 0) {
+            return false;
+        } // end if (copy < 0)
+        
+        byte[] index  = BlockPool.take();
+        int    shared = 0;                  // pointers given a reference
+        
+        SysLib.rawread(inode.indirect, index);
+        
+        while (shared < Inode.indirectSize) {
+            short pointer = SysLib.bytes2short(index, shared * 2);
+            
+            if (pointer != -1 && !superblock.share(Inode.blockOf(pointer))) {
+                break;
+            } // end if (pointer != -1...)
+            
+            ++shared;
+        } // end while (shared < Inode.indirectSize)
+        
+        boolean copied = shared == Inode.indirectSize;
+        
+        // the clone may have let go of the old index block meanwhile, which
+        //  leaves it to this inode alone
+        if (copied && superblock.unshare(inode.indirect)) {
+            SysLib.rawwrite(copy, index);
+            inode.indirect = (short)copy;
+        } else {
+            for (int i = 0; i < shared; ++i) {
+                short pointer = SysLib.bytes2short(index, i * 2);
+                
+                if (pointer != -1) {
+                    superblock.returnBlock(Inode.blockOf(pointer));
+                } // end if (pointer != -1)
+            } // end for (; i < shared; )
+            
+            superblock.returnBlock(copy);
+        } // end if (copied...)
+        
+        BlockPool.give(index);
+        return copied;
+    } // end unshareIndex(Inode)
+    
+    
     /**
      * deallocAllBlocks().
      * @param  ftEnt = fileTableEntry being deallocated.
+     * returns every block of the file, written or only reserved, and its index
+     * block to the free list, and truncates the file to zero length.
      */
     private boolean deallocAllBlocks(FileTableEntry ftEnt) {
         if(ftEnt == null)
             return false;
-        //deallocate all direct blocks
-        for(int i = 0; i<11; i++){
-            if(ftEnt.inode.direct[i]==-1)
-                return true;
-            if(!superblock.returnBlock(i))
-                return false;
-        }
+        deallocBlocks(ftEnt.inode, 0);
+        ftEnt.inode.length = 0;
+        ftEnt.inode.toDisk(ftEnt.iNumber);
+        return true;
+    } // end deallocAllBlocks(FileTableEntry)
+    
+    
+    /**
+     * Returns the blocks of a file from a given file block on to the free
+     *  list, written or only reserved, along with the index block once no
+     *  block past the direct pointers is left. Blocks shared with a clone
+     *  only lose a reference. An index block shared with a clone is dropped
+     *  whole if none of it is kept, and copied first otherwise.
+     * @param  inode  The inode of the file.
+     * @param  first  The index of the first file block to free.
+     * @pre    The monitor of inode is held.
+     * @post   File blocks first on are holes; the inode is not written back.
+     * @return true if successful; false if a shared index block could not be
+     *          copied, in which case no block was freed.
+     */
+    private boolean deallocBlocks(Inode inode, int first) {
+        if (inode.indirect != -1 && first <= Inode.directSize) {
+            if (superblock.unshare(inode.indirect)) {
+                inode.indirect = -1;						//the clone keeps it
+            } // end if (superblock.unshare(inode.indirect))
+        } else if (inode.indirect != -1 && superblock.isShared(inode.indirect)
+                   && !unshareIndex(inode)) {
+            return false;
+        } // end if (inode.indirect != -1...)
         
-        //unregister indexBlock of Inode,
-        //receiving byte array of block locations
-        byte[] freeBlocks = ftEnt.inode.unregisterIndexBlock();
+        int blocks[] = new int[Inode.directSize + Inode.indirectSize + 1];
+        int count    = inode.unmapBlocks(first, blocks);
+        
+        for (int i = 0; i < count; ++i) {
+            cache.invalidate(blocks[i]);
+            superblock.returnBlock(blocks[i]);
+        } // end for (; i < count; )
         
-        //deallocate all indirect blocks
-        for (int i = 0; i<ftEnt.inode.length/512-11; i++){
-            int blockNum = (int) freeBlocks[i*2];
-            if(!superblock.returnBlock(blockNum))
-                return false;
-        }
         return true;
-    } // end deallocAllBlocks(FileTableEntry)
+    } // end deallocBlocks(Inode, int)
+    
+    
+    /*
+     * The read-ahead state of one entry: where the next sequential read would
+     *  start, how many blocks to prefetch, and room to map them.
+     */
+    private static class ReadAhead {
+        int     next   = 0;
+        int     window = 0;
+        short[] blocks = new short[maxReadAhead];
+    } // end class ReadAhead
+    
+    
+    /*
+     * The small writes of one entry that have not reached the disk yet: bytes
+     *  lo up to hi of file block index, whether the rest of data matched the
+     *  block on disk when the stripe of the block had version stamp,
+     *  whether the inode on disk is behind, and whether a flush made by
+     *  another call lost bytes, for the next fsync or close of the entry to
+     *  report. Between flushes lo equals hi and data still holds the block
+     *  last written.
+     */
+    private static class WriteBuffer {
+        byte[]  data  = new byte[Disk.blockSize];
+        int     index = -1;
+        int     lo    = 0;
+        int     hi    = 0;
+        boolean image = false;
+        int     stamp = 0;
+        boolean inodeDirty = false;
+        boolean lost  = false;
+        
+        /*
+         * Whether length bytes at the seek pointer of ftEnt may be buffered:
+         *  they are fewer than a block and either nothing is buffered, or
+         *  they start in the block held and continue or overlap the bytes
+         *  buffered. Bytes between lo and hi are always written ones, since
+         *  the rest of data may be stale by the time it is flushed.
+         */
+        boolean fits(FileTableEntry ftEnt, int length) {
+            int offset = ftEnt.seekPtr % Disk.blockSize;
+            
+            if (length == 0 || length >= Disk.blockSize
+                    || ftEnt.seekPtr + length > Inode.maxFileSize) {
+                return false;
+            } // end if (length == 0...)
+            
+            return hi == lo || (ftEnt.seekPtr / Disk.blockSize == index
+                                && offset >= lo && offset <= hi);
+        } // end fits(FileTableEntry, int)
+        
+        /*
+         * Copies buffer from start on into this one, up to the end of the
+         *  block at the seek pointer, and advances the seek pointer. Nothing
+         *  must be buffered for another block.
+         */
+        int stage(FileTableEntry ftEnt, byte buffer[], int start) {
+            int offset = ftEnt.seekPtr % Disk.blockSize;
+            int count  = Math.min(buffer.length - start,
+                                  Disk.blockSize - offset);
+            
+            if (ftEnt.seekPtr / Disk.blockSize != index) {
+                forget();
+                index = ftEnt.seekPtr / Disk.blockSize;
+            } // end if (ftEnt.seekPtr / Disk.blockSize != index)
+            
+            if (hi == lo) {
+                lo = hi = offset;
+            } // end if (hi == lo)
+            
+            System.arraycopy(buffer, start, data, offset, count);
+            lo = Math.min(lo, offset);
+            hi = Math.max(hi, offset + count);
+            ftEnt.seekPtr += count;
+            return count;
+        } // end stage(FileTableEntry, byte[], int)
+        
+        /*
+         * Whether the whole block is buffered.
+         */
+        boolean isFull() {
+            return lo == 0 && hi == Disk.blockSize;
+        } // end isFull()
+        
+        /*
+         * Drops the block held, which must have nothing buffered, as when the
+         *  file changes under it.
+         */
+        void forget() {
+            Arrays.fill(data, (byte)0);
+            index = -1;
+            lo = hi = 0;
+            image = false;
+        } // end forget()
+    } // end class WriteBuffer
+    
+    
+    /*
+     * The lock for writing back the blocks that map to it, and how many
+     *  times one of them was written, so that a write buffer can tell
+     *  whether the block it holds is still current.
+     */
+    private static class BlockStripe {
+        int version = 0;
+    } // end class BlockStripe
+    
+    
+    /*
+     * One or more byte arrays, or part of one, read or written as if they
+     *  were one, with a cursor that moves forward through them.
+     */
+    private static class IoVector {
+        private static ThreadLocal<IoVector> vectors =
+                new ThreadLocal<IoVector>() {
+                    protected IoVector initialValue() {
+                        return new IoVector(new byte[0]);
+                    } // end initialValue()
+                };
+        
+        byte[][] buffers;
+        int      length = 0;    // bytes in all buffers
+        int      left   = 0;    // bytes past the cursor
+        int      index  = 0;    // buffer the cursor is in
+        int      offset = 0;    // cursor within buffers[index]
+        
+        /*
+         * The vector of the calling thread, reset to count bytes of buffer
+         *  from start, so that a read or write of one buffer allocates none.
+         *  It is only taken by the system calls themselves, never by what
+         *  they call, and keeps buffer until the next call.
+         */
+        static IoVector of(byte buffer[], int start, int count) {
+            IoVector vector = vectors.get();
+            
+            vector.buffers[0] = buffer;
+            vector.index  = 0;
+            vector.offset = start;
+            vector.length = vector.left = count;
+            return vector;
+        } // end of(byte[], int, int)
+        
+        IoVector(byte buffer[]) {
+            this(buffer, 0, buffer.length);
+        } // end constructor
+        
+        IoVector(byte buffer[], int start, int count) {
+            buffers = new byte[][] { buffer };
+            offset  = start;
+            length  = left = count;
+        } // end constructor
+        
+        IoVector(byte buffers[][]) {
+            this.buffers = buffers;
+            
+            for (int i = 0; i < buffers.length; ++i) {
+                length += buffers[i].length;
+            } // end for (; i < buffers.length; )
+            
+            left = length;
+        } // end constructor
+        
+        /*
+         * Ends this vector after count bytes, if it holds more; the cursor
+         *  must still be at the start.
+         */
+        IoVector limit(int count) {
+            length = left = Math.min(count, length);
+            return this;
+        } // end limit(int)
+        
+        /*
+         * Whether count bytes from start lie within buffer.
+         */
+        static boolean fits(byte buffer[], int start, int count) {
+            return buffer != null && start >= 0 && count >= 0
+                    && start <= buffer.length - count;
+        } // end fits(byte[], int, int)
+        
+        /*
+         * The buffer the cursor is in, past any empty ones.
+         */
+        byte[] current() {
+            span();
+            return buffers[index];
+        } // end current()
+        
+        /*
+         * The position of the cursor within current().
+         */
+        int position() {
+            span();
+            return offset;
+        } // end position()
+        
+        /*
+         * The bytes from the cursor to the end of current(); 0 at the end.
+         */
+        int span() {
+            if (left == 0) {
+                return 0;
+            } // end if (left == 0)
+            
+            while (offset == buffers[index].length) {
+                ++index;
+                offset = 0;
+            } // end while (offset == buffers[index].length)
+            
+            return Math.min(buffers[index].length - offset, left);
+        } // end span()
+        
+        /*
+         * Moves the cursor forward by count bytes.
+         */
+        void skip(int count) {
+            while (count > 0) {
+                int step = Math.min(span(), count);
+                offset += step;
+                left   -= step;
+                count  -= step;
+            } // end while (count > 0)
+        } // end skip(int)
+        
+        /*
+         * Sets the next count bytes to zero.
+         */
+        void fill(int count) {
+            while (count > 0) {
+                int step = Math.min(span(), count);
+                Arrays.fill(buffers[index], offset, offset + step, (byte)0);
+                offset += step;
+                left   -= step;
+                count  -= step;
+            } // end while (count > 0)
+        } // end fill(int)
+        
+        /*
+         * Copies count bytes of source from start into the next bytes.
+         */
+        void scatter(byte source[], int start, int count) {
+            while (count > 0) {
+                int step = Math.min(span(), count);
+                System.arraycopy(source, start, buffers[index], offset, step);
+                offset += step;
+                left   -= step;
+                start  += step;
+                count  -= step;
+            } // end while (count > 0)
+        } // end scatter(byte[], int, int)
+        
+        /*
+         * Copies the next count bytes into target from start.
+         */
+        void gather(byte target[], int start, int count) {
+            while (count > 0) {
+                int step = Math.min(span(), count);
+                System.arraycopy(buffers[index], offset, target, start, step);
+                offset += step;
+                left   -= step;
+                start  += step;
+                count  -= step;
+            } // end while (count > 0)
+        } // end gather(byte[], int, int)
+    } // end class IoVector
 } // end class FileSystem
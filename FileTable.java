@@ -1,139 +1,317 @@
 /*
  * @file    FileTbale.java
- * @brief   FileTable has two purposes; it maintains user-thread level file 
- * tables and a system-wide file table. Each individual FileTable contains a 
- * vector of FileTableEntry objects and a reference to the root directory. 
- * 
- * The class manages FileTableEntry(s) through falloc – create fileTableEntry – 
- * and ffree – remove fileTableEntry. 
- * 
+ * @brief   FileTable has two purposes; it maintains user-thread level file
+ * tables and a system-wide file table. Each individual FileTable contains a
+ * concurrent map from each iNumber to its slot, and a reference to the root
+ * directory. A slot holds the FileTableEntry objects that reference the file,
+ * the in-memory Inode they share, and the byte-range locks of the file.
+ *
+ * The class manages FileTableEntry(s) through falloc – create fileTableEntry –
+ * and ffree – remove fileTableEntry.
+ *
  * @author  Chris Grass
  * @date    December 14, 2012
  */
-import java.util.Vector;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class FileTable {
-	  private Vector<FileTableEntry> table;         // the actual entity of this file table
-	  private Directory dir;        // the root directory 
+	  private ConcurrentHashMap<Short, Slot> table; // the actual entity of this
+	  								// file table, by iNumber
+	  private AtomicInteger openCount;	// number of entries in table
+	  private Directory dir;        // the root directory
+	  private Reclaimer reclaimer;	// frees the blocks of deleted files
+	  private ConcurrentLinkedQueue<Short> released;	// reclaimed iNumbers
 
-	    /** 
+	    /**
 	     * Constructor
-	     * @param  dir  .
+	     * @param  dir, reclaimer  .
 	     * @pre    .
 	     * @post   .
 	     * constructs a FileTable
 	     */
-	  public FileTable( Directory directory ) { // constructor
-	    table = new Vector<FileTableEntry>();       // instantiate a file table
+	  public FileTable( Directory directory, Reclaimer reclaimer ) {
+	    table = new ConcurrentHashMap<Short, Slot>();
+	    openCount = new AtomicInteger(0);	// instantiate a file table
 	    dir = directory;            // receive a reference to the Director
-	  }                             // from the file system
-	  
-	    /** 
+	    this.reclaimer = reclaimer; // from the file system
+	    released = new ConcurrentLinkedQueue<Short>();
+	  }
+
+	    /**
 	     * falloc
 	     * @param  String filename, String mode  .
 	     * @pre    .
 	     * @post   .
 	     * @return returns reference to new FileTableEntry; null if error
-	     * creates a FileTableEntry based on filename and mode.
+	     * creates a FileTableEntry based on filename and mode. Opening does
+	     * not lock the file: readers and writers share it and exclude each
+	     * other only over the byte ranges they touch, through the RangeLock
+	     * returned by ranges().
 	     */
-	  public synchronized FileTableEntry falloc( String filename, String mode ) {
+	  public FileTableEntry falloc( String filename, String mode ) {
+		  boolean reading = mode.compareTo("r")==0;
+		  short iNum = -1;
+		  Slot slot;
+		  int generation;
 
 		  // retrieve iNum from dir for corresponding filename. -1 if none exists
-		  short iNum = -1;
-		  Inode inode = null;
-		  
-		  //busy loop
-		  while (true){
-              iNum = dir.namei( filename );
+		  synchronized(dir){
+			  iNum = dir.namei( filename );
 			  if(iNum<0){						//if new file, create Inode
-				  if(mode.compareTo("r")==0)	//if no file exists and trying to read
+				  if(reading)					//if no file exists and trying to read
 					  return null;
-				  inode = new Inode();
+				  reap();
 				  iNum = dir.ialloc(filename);	//allocate iNum from freeList
-			  }
-			  else
-				  inode = new Inode(iNum);		//push existing Inode to memory
-			  if(inode.flag==-1)
-                      return null;
-			  if(mode.compareTo("r")==0){		//if read-only, check if flag
-				  if(inode.flag!=3){			//is set to writing(3)
-					  inode.flag=2;				//if so, wait for flag to clear
-					  break;					
+				  if(iNum<0)					//no parent directory or inode
+					  return null;
+				  slot = getSlot(iNum);
+				  synchronized(slot){
+					  slot.inode = new Inode();	//shared by every opener
 				  }
 			  }
-			  //	  mode is w, w+, or a
-			  else{				  
-				  if(inode.flag < 2 ){			//is set to writing(3)
-					  inode.flag = 3;
-					  break;					//if so, wait for flag to clear
-				  }
+			  else if(dir.isDirectory(iNum) && !reading)
+				  return null;					//directories are read-only
+			  else
+				  slot = getSlot(iNum);
+			  synchronized(slot){
+				  generation = slot.generation;
 			  }
-				  
 		  }
-		  
-		  // allocate a new file table entry for this file name
-		  FileTableEntry newEntry = new FileTableEntry(inode,iNum,mode);
-		  table.add(newEntry);					//add newEntry to table
-		  // increment this inode's count
-		  inode.count++;						//increment inode's count
-		  // immediately write back this inode to the disk
-		  inode.toDisk(iNum);					//save updated inode to disk
-		  // return a reference to this file table entry
-		  return newEntry;
+
+		  synchronized(slot){
+			  if(slot.generation != generation)	//deleted meanwhile
+				  return null;
+			  if(slot.inode == null)			//push existing Inode to memory
+				  slot.inode = new Inode(iNum);
+			  slot.inode.flag = (short)(reading ? 2 : 3);
+			  // allocate a new file table entry for this file name
+			  FileTableEntry newEntry =
+					  new FileTableEntry(slot.inode,iNum,mode);
+			  slot.entries.add(newEntry);		//add newEntry to table
+			  openCount.incrementAndGet();
+			  // increment this inode's count
+			  slot.inode.count++;				//increment inode's count
+			  // immediately write back this inode to the disk
+			  slot.inode.toDisk(iNum);			//save updated inode to disk
+			  // return a reference to this file table entry
+			  return newEntry;
+		  }
 	  }
 
-	    /** 
+	    /**
 	     * ffree
 	     * @param  FileTableEntry e .
 	     * @pre    .
 	     * @post   .
 	     * @return true on success, false if e doesn't exist in table.
-	     * removes FileTableEntry from table and decrements inode.count
+	     * removes FileTableEntry from the slot of its iNumber, decrements
+	     * inode.count and releases every byte range e still holds. Only the
+	     * monitor of that slot is held, so files that are unrelated to e can be opened
+	     * and closed meanwhile. Closing the last entry of a deleted file hands
+	     * it to the reclaimer.
 	     */
-	  public synchronized boolean ffree( FileTableEntry e ) {
+	  public boolean ffree( FileTableEntry e ) {
 	    // receive a file table entry reference
-		  int loc = findLoc(e); 			//find index of entry
-		  if (loc<0)						//if table doesn't contain e
+		  if (e == null)
+			  return false;
+		  Slot slot = table.get(e.iNumber);
+		  if (slot == null)					//if table doesn't contain e
 			  return false;					//return false
-		  e.inode.count--;
-                  if (e.inode.count == 0)
-                      e.inode.flag = 0;
-		  e.inode.toDisk(e.iNumber);		//save updated inode to disk
-		  return table.remove(table.elementAt(loc));   //remove e from table
+		  synchronized(slot){
+			  if (!slot.entries.remove(e))	//remove e from table
+				  return false;
+			  slot.ranges.unlockAll(e);		//wake up waiting lockers
+			  e.inode.count--;
+			  if (e.inode.count == 0){
+				  if (!slot.orphaned)
+					  e.inode.flag = 0;
+				  slot.inode = null;			//reread at next open
+			  }
+			  e.inode.toDisk(e.iNumber);	//save updated inode to disk
+			  if (e.inode.count == 0 && slot.orphaned){
+				  slot.orphaned = false;
+				  reclaimer.reclaim(e.iNumber, this);	//free its blocks
+			  }
+		  }
+		  openCount.decrementAndGet();
+		  return true;
+	  }
+
+	    /**
+	     * unlink
+	     * @param  String filename
+	     * @pre    .
+	     * @post   .
+	     * @return true on success, false if filename doesn't exist, is the
+	     * root or is a non-empty directory.
+	     * removes filename from the directory at once. If the file is not
+	     * open its blocks are handed to the reclaimer now; otherwise the
+	     * inode is marked deleted (flag -1) and the last ffree hands it over.
+	     * Openers that looked up the name before it was removed fail.
+	     * Nothing here waits for other descriptors or for the blocks to be
+	     * freed.
+	     */
+	  public boolean unlink( String filename ) {
+		  short iNum;
+		  Slot slot;
+
+		  synchronized(dir){
+			  iNum = dir.namei( filename );
+			  if(iNum<=0 || !dir.unlink(iNum))	//missing, root or non-empty
+				  return false;
+			  slot = getSlot(iNum);
+		  }
+
+		  synchronized(slot){
+			  slot.generation++;				//fail openers in progress
+			  if(slot.entries.isEmpty())
+				  reclaimer.reclaim(iNum, this);
+			  else{
+				  slot.orphaned = true;			//last ffree reclaims it
+				  slot.inode.flag = -1;
+				  slot.inode.toDisk(iNum);
+			  }
+		  }
+		  return true;
+	  }
+
+	    /**
+	     * ranges
+	     * @param  FileTableEntry e
+	     * @pre    .
+	     * @post   .
+	     * @return the byte-range locks of the file e refers to.
+	     */
+	  public RangeLock ranges( FileTableEntry e ){
+		  return getSlot(e.iNumber).ranges;
+	  }
+
+	    /**
+	     * shared
+	     * @param  FileTableEntry e
+	     * @pre    .
+	     * @post   .
+	     * @return true if another entry has the file of e open.
+	     * lets the file system skip looking for the write buffers of other
+	     * entries when there are none.
+	     */
+	  public boolean shared( FileTableEntry e ){
+		  Slot slot = getSlot(e.iNumber);
+		  synchronized(slot){
+			  return slot.entries.size() > 1
+					  || (slot.entries.size() == 1 && !slot.entries.contains(e));
+		  }
+	  }
+
+	    /**
+	     * release
+	     * @param  short iNum
+	     * @pre    the blocks of iNum have been reclaimed.
+	     * @post   .
+	     * makes the inode number of an unlinked file available to falloc.
+	     * The number is only queued here, so the reclaimer never waits for
+	     * the directory lock; the next allocation hands it to the directory.
+	     */
+	  public void release( short iNum ){
+		  released.add(iNum);
+	  }
+
+	    /**
+	     * mkdir
+	     * @param  String path
+	     * @pre    .
+	     * @post   .
+	     * @return the iNumber of the new directory; -1 on error.
+	     * creates an empty directory under the directory lock and writes its
+	     * empty inode before the name can be looked up by other threads.
+	     */
+	  public short mkdir( String path ){
+		  synchronized(dir){
+			  reap();
+			  short iNum = dir.mkdir(path);
+			  if(iNum>=0){
+				  Inode inode = new Inode();
+				  inode.flag = 0;
+				  inode.toDisk(iNum);
+			  }
+			  return iNum;
+		  }
 	  }
-	  
-	    /** 
+
+	    /**
 	     * fempty
 	     * @param  .
 	     * @pre    .
 	     * @post   .
 	     * test for empty table
 	     */
-	  public synchronized boolean fempty() {
-	    return table.isEmpty();  // return if table is empty 
+	  public boolean fempty() {
+	    return openCount.get() == 0;  // return if table is empty
 	  }                          // should be called before starting a format
-	  
-	    /** 
-	     * findLoc
-	     * @param  FileTableEntry entry
+
+	    /**
+	     * findFtEnt
+	     * @param  short iNum
 	     * @pre    .
 	     * @post   .
-	     * finds and returns index of entry. returns -1 if not found
+	     * returns an open entry of iNum, or null if the file is not open.
 	     */
-	  private int findLoc(FileTableEntry entry){
-		  int index = -1;
-		  for(int i = 0; i <table.size(); i++){
-			  if(table.elementAt(i).equals(entry))
-				  return i;
+	  public FileTableEntry findFtEnt(short iNum){
+		  Slot slot = table.get(iNum);
+		  if (slot == null)
+			  return null;
+		  synchronized(slot){
+			  return slot.entries.isEmpty()
+					  ? null : slot.entries.iterator().next();
 		  }
-		  return index;//-1 if error or not found
 	  }
 
-          public FileTableEntry findFtEnt(short iNum){
-              for (int i = 0; i<table.size(); i++)
-                  if(table.elementAt(i).iNumber == iNum)
-                     return table.elementAt(i);
-              return null;
-          }
+	    /**
+	     * reap
+	     * @param  .
+	     * @pre    the monitor of dir is held.
+	     * @post   .
+	     * hands every released iNumber back to the directory.
+	     */
+	  private void reap(){
+		  Short iNum;
+		  while((iNum = released.poll()) != null)
+			  dir.release(iNum);
+	  }
+
+	    /**
+	     * getSlot
+	     * @param  short iNum
+	     * @pre    .
+	     * @post   .
+	     * returns the slot of iNum, creating it on first use. Slots are kept
+	     * for the life of the table so that lockers never race a new one.
+	     */
+	  private Slot getSlot(short iNum){
+		  Slot slot = table.get(iNum);
+		  if (slot == null){
+			  table.putIfAbsent(iNum, new Slot());
+			  slot = table.get(iNum);
+		  }
+		  return slot;
+	  }
+
+	  /*
+	   * Per-iNumber state: the open entries, the Inode they share while any
+	   * is open, and the byte-range locks. The generation counts deletions,
+	   * so that an opener that raced one notices; orphaned marks a deleted
+	   * file that is still open.
+	   */
+	  private static class Slot {
+		  LinkedHashSet<FileTableEntry> entries =
+				  new LinkedHashSet<FileTableEntry>();
+		  Inode inode;
+		  int generation;
+		  boolean orphaned;
+		  RangeLock ranges = new RangeLock();
+	  }
 }
@@ -3,7 +3,9 @@
  * @brief   Inode contains all the pertinent information for each file on disk. 
  * A flag system is used to indicate what 'mode' the Inode is in, and 
  * direct/indirect block pointers are used to direct rawread/rawwrite commands 
- * to the correct diskBlock. 
+ * to the correct diskBlock. A pointer of -1 is a hole; a pointer below -1 is
+ * a block reserved by fallocate but never written, stored as ~block, which
+ * reads as zeros like a hole until its first write.
  * @author  Chris Grass
  * @date    December 14, 2012
  */
@@ -13,13 +15,15 @@ public class Inode {
 
 	public final static int iNodeSize = 32;      // fixed to 32 bytes
 	public final static int directSize = 11;     // # direct pointers
+	public final static int indirectSize = 256;  // # pointers in index block
+	public final static int maxFileSize =        // largest addressable offset
+			(directSize + indirectSize) * Disk.blockSize;
 
 	public int length;                 // file size in bytes
 	public short count;                // # file-table entries pointing to this
 	public short flag;                 // how is this file (inode) being used?
 	public short direct[] = new short[directSize]; // direct pointers
 	public short indirect;                         // an indirect pointer
-	private short nextIndirectPointer;			   //count of indirect pointers
 
 	Inode () {                        // a default constructor (new file)
 		length = 0;					  // number of bytes in file
@@ -42,7 +46,7 @@ public class Inode {
      */
 	Inode ( short iNumber ) {
 	    int blkNumber = iNumber / 16 + 1; 	//determines block# on disk
-	    byte[] data = new byte[Disk.blockSize]; 	
+	    byte[] data = BlockPool.take(); 	
 	    SysLib.rawread( blkNumber, data ); //read block corresponding to iNumber
 	    int offset = ( iNumber % 16 ) * iNodeSize; 	
 	    length = SysLib.bytes2int( data, offset );
@@ -56,10 +60,7 @@ public class Inode {
 	      offset += 2;
 	    }
 	    indirect = SysLib.bytes2short( data, offset );
-	    if(length/512-11 > 0)
-	    	nextIndirectPointer = (short) (length/512-11);
-	    else
-	    	nextIndirectPointer = 0;
+	    BlockPool.give( data );
 	  }
 	
     /** 
@@ -73,7 +74,7 @@ public class Inode {
 		int blkNumber = iNumber / 16 + 1; 	//determines block# on disk
 		int offset = ( iNumber % 16 ) * iNodeSize; 	
 		//byte[] iNodeData = new byte[iNodeSize]; //allocate block for data
-		byte[] originalData = new byte[Disk.blockSize]; 	
+		byte[] originalData = BlockPool.take(); 	
 		
 	    SysLib.rawread( blkNumber, originalData ); //read original block	    
 		SysLib.int2bytes(length, originalData, offset); //write length
@@ -88,6 +89,7 @@ public class Inode {
 		    }
 		SysLib.short2bytes(indirect, originalData, offset);	//write indirect pointer
 		SysLib.rawwrite(blkNumber, originalData);			//write data to disk
+		BlockPool.give(originalData);
 	}
 	
     /** 
@@ -103,13 +105,20 @@ public class Inode {
     /** 
      * registerIndexBlock
      * @param short indexBlockNumber   .
-     * @pre    .
+     * @pre    indexBlockNumber is a free block.
      * @post   .
-     * sets indirect block number to param
+     * sets indirect block number to param and marks every pointer in the new
+     * index block as unused (-1), so untouched entries read back as holes.
      */
 	boolean registerIndexBlock( short indexBlockNumber ){
+		if (indirect != -1 || indexBlockNumber < 0)
+			return false;
+		byte[] indirectArray = BlockPool.take();
+		for (int i = 0; i < indirectSize; i++)
+			SysLib.short2bytes((short) -1, indirectArray, i*2);
+		SysLib.rawwrite(indexBlockNumber, indirectArray);
+		BlockPool.give(indirectArray);
 		indirect = indexBlockNumber;
-		nextIndirectPointer = 0;
 		return true;
 	}
     /** 
@@ -117,14 +126,16 @@ public class Inode {
      * @param int offset   .
      * @pre    .
      * @post   .
-     * @return int pointer to targetBlock
+     * @return int pointer to targetBlock, or -1 if offset falls in a hole
      * in this context, offset will be byte index location in file. 
      * TargetBlock = offset/512. If TargetBlock > 11, we must look in indirect
      * block for byte info.
      */
 	int findTargetBlock( int offset ){
-		int targetBlock = offset/512;
-		if (targetBlock<11){
+		int targetBlock = offset/Disk.blockSize;
+		if (offset < 0 || targetBlock >= directSize + indirectSize)
+			return -1;
+		if (targetBlock<directSize){
 			if (direct[targetBlock] < 0)
 				return -1;
 			else					
@@ -134,47 +145,258 @@ public class Inode {
 			if(indirect == -1)
 				return -1;
 			else
-				return scanIndirect(offset);
+				return Math.max(scanIndirect(offset), -1);
 	}
+	
     /** 
-     * registerTargetBlock
-     * @param int numBytes, short targetBlockNumber   .
+     * findReservedBlock
+     * @param int offset   .
      * @pre    .
      * @post   .
-     * @return returns 0 on success, -1 on failure
-     *
+     * @return the block reserved for offset by reserveBlocks, or -1 if
+     *			offset is mapped to a written block or a hole.
      */
-	int registerTargetBlock( int numBytes, short targetBlockNumber){
-		//if beyond maxFileSize or beyond totalBlocks
-		if (targetBlockNumber > 1000 || numBytes > 512*11 + 512 * 256)
+	int findReservedBlock( int offset ){
+		int targetBlock = offset/Disk.blockSize;
+		if (offset < 0 || targetBlock >= directSize + indirectSize)
+			return -1;
+		if (targetBlock < directSize)
+			return (direct[targetBlock] < -1) ? ~direct[targetBlock] : -1;
+		if (indirect == -1)
 			return -1;
-		for (int i =0; i<11;i++){
-			if (direct[i] < 0){
-				direct[i]=targetBlockNumber;
-				return 0;
-			}			
+		int pointer = scanIndirect(offset);
+		return (pointer < -1) ? ~pointer : -1;
+	}
+	
+    /** 
+     * blockOf
+     * @param short pointer   .
+     * @pre    .
+     * @post   .
+     * @return the disk block a pointer holds, whether written or reserved, or
+     *			-1 for a hole.
+     */
+	static int blockOf( short pointer ){
+		return (pointer < -1) ? ~pointer : pointer;
+	}
+    /** 
+     * registerTargetBlock
+     * @param int offset, short targetBlockNumber   .
+     * @pre    offset lies in a hole; an index block has been registered if
+     *          offset is beyond the direct pointers.
+     * @post   .
+     * @return returns 0 on success, -1 if offset is beyond maxFileSize or
+     *          already mapped, -3 if the needed index block is missing
+     * in this context, offset is the byte index in the file whose block is
+     * being mapped, so blocks may be registered in any order.
+     */
+	int registerTargetBlock( int offset, short targetBlockNumber){
+		int targetBlock = offset/Disk.blockSize;
+		if (offset < 0 || targetBlockNumber < 0
+				|| targetBlock >= directSize + indirectSize)
+			return -1;
+		if (targetBlock < directSize){
+			if (direct[targetBlock] >= 0)
+				return -1;
+			direct[targetBlock] = targetBlockNumber;
+			return 0;
 		}
 		//if beyond direct blocks, write to indirect block
-		writeIndirect(targetBlockNumber);
+		if (indirect == -1)
+			return -3;
+		return writeIndirect(targetBlock - directSize, targetBlockNumber);
+	}
+    /** 
+     * replaceTargetBlock
+     * @param int offset, short targetBlockNumber   .
+     * @pre    an index block has been registered if offset is beyond the
+     *          direct pointers.
+     * @post   .
+     * @return returns 0 on success, -1 if offset is beyond maxFileSize
+     * maps the block holding offset to targetBlockNumber whatever it was
+     * mapped to before, as when a shared block is copied before a write.
+     * The caller disposes of the old block.
+     */
+	int replaceTargetBlock( int offset, short targetBlockNumber ){
+		int targetBlock = offset/Disk.blockSize;
+		if (offset < 0 || targetBlock >= directSize + indirectSize)
+			return -1;
+		if (targetBlock < directSize){
+			direct[targetBlock] = targetBlockNumber;
+			return 0;
+		}
+		byte[] indirectArray = BlockPool.take();
+		SysLib.rawread(indirect, indirectArray);
+		SysLib.short2bytes(targetBlockNumber, indirectArray,
+				(targetBlock - directSize)*2);
+		SysLib.rawwrite(indirect, indirectArray);
+		BlockPool.give(indirectArray);
 		return 0;
 	}
+	
     /** 
      * unregisterIndexBlock
      * @param    .
      * @pre    .
-     * @post   .
-     * @return byte array of block info stored in indirect.
+     * @post   indirect is -1.
+     * @return byte array of block info stored in indirect, or null if no
+     *			index block was registered. The array comes from BlockPool
+     *			and may be given back once the caller is done with it.
      */
 	byte[] unregisterIndexBlock(){
-		byte[] indirectArray = new byte[512];
+		if (indirect == -1)
+			return null;
+		byte[] indirectArray = BlockPool.take();
 		SysLib.rawread(indirect,indirectArray);
-		for (int i = 0; i < 512; i++){
-			indirectArray[i] = 0;
-		}
-		nextIndirectPointer = 0;
+		indirect = -1;
 		return indirectArray;
 	}
 	
+    /** 
+     * findNextExtent
+     * @param  int offset, boolean allocated  .
+     * @pre    offset >= 0.
+     * @post   .
+     * @return the smallest file offset >= offset whose block is allocated
+     *			(allocated == true) or a hole (allocated == false), or -1 if
+     *			no such block exists before maxFileSize. The index block is
+     *			read at most once.
+     */
+	int findNextExtent( int offset, boolean allocated ){
+		byte[] indirectArray = null;
+		for (int i = offset/Disk.blockSize; i < directSize + indirectSize; i++){
+			short block;
+			if (i < directSize)
+				block = direct[i];
+			else if (indirect == -1)
+				block = -1;
+			else {
+				if (indirectArray == null){
+					indirectArray = BlockPool.take();
+					SysLib.rawread(indirect, indirectArray);
+				}
+				block = SysLib.bytes2short(indirectArray, (i-directSize)*2);
+			}
+			if ((block >= 0) == allocated){
+				BlockPool.give(indirectArray);
+				return Math.max(offset, i*Disk.blockSize);
+			}
+		}
+		BlockPool.give(indirectArray);
+		return -1;
+	}
+	
+    /** 
+     * mapBlocks
+     * @param  int offset, short blocks[]  .
+     * @pre    offset >= 0.
+     * @post   .
+     * @return number of entries filled in blocks
+     * fills blocks with the disk blocks of the consecutive file blocks
+     * starting at the one holding offset; holes are -1. Stops at the end of
+     * blocks or at maxFileSize. The index block is read at most once.
+     */
+	int mapBlocks( int offset, short blocks[] ){
+		byte[] indirectArray = null;
+		int first = offset/Disk.blockSize;
+		int count = 0;
+		for (int i = first; i < directSize + indirectSize
+				&& count < blocks.length; i++){
+			if (i < directSize)
+				blocks[count++] = direct[i];
+			else if (indirect == -1)
+				blocks[count++] = -1;
+			else {
+				if (indirectArray == null){
+					indirectArray = BlockPool.take();
+					SysLib.rawread(indirect, indirectArray);
+				}
+				blocks[count++] =
+						SysLib.bytes2short(indirectArray, (i-directSize)*2);
+			}
+		}
+		BlockPool.give(indirectArray);
+		return count;
+	}
+	
+    /** 
+     * reserveBlocks
+     * @param  int first, int last, int blocks[]  .
+     * @pre    an index block has been registered if last > directSize.
+     * @post   .
+     * @return number of entries of blocks used
+     * maps the holes among file blocks first up to last to the disk blocks
+     * in blocks, in order, as reserved pointers; blocks already mapped are
+     * kept. Stops early when blocks runs out. The index block is read and
+     * written at most once.
+     */
+	int reserveBlocks( int first, int last, int blocks[] ){
+		byte[] indirectArray = null;
+		int used = 0;
+		for (int i = first; i < last && i < directSize + indirectSize
+				&& used < blocks.length; i++){
+			if (i < directSize){
+				if (direct[i] == -1)
+					direct[i] = (short)~blocks[used++];
+				continue;
+			}
+			if (indirectArray == null){
+				indirectArray = BlockPool.take();
+				SysLib.rawread(indirect, indirectArray);
+			}
+			if (SysLib.bytes2short(indirectArray, (i-directSize)*2) == -1)
+				SysLib.short2bytes((short)~blocks[used++], indirectArray,
+						(i-directSize)*2);
+		}
+		if (indirectArray != null){
+			SysLib.rawwrite(indirect, indirectArray);
+			BlockPool.give(indirectArray);
+		}
+		return used;
+	}
+	
+    /** 
+     * unmapBlocks
+     * @param  int first, int blocks[]  .
+     * @pre    blocks has room for directSize + indirectSize + 1 entries.
+     * @post   file blocks first on are holes; if first <= directSize, no
+     *			index block is registered.
+     * @return number of entries filled in blocks
+     * fills blocks with the disk blocks, written or reserved, that file
+     * blocks first on were mapped to, followed by the index block if it was
+     * unregistered. The caller frees them.
+     */
+	int unmapBlocks( int first, int blocks[] ){
+		int count = 0;
+		for (int i = first; i < directSize; i++){
+			if (direct[i] != -1)
+				blocks[count++] = blockOf(direct[i]);
+			direct[i] = -1;
+		}
+		if (indirect == -1)
+			return count;
+		int indexBlock = indirect;
+		byte[] indirectArray = BlockPool.take();
+		SysLib.rawread(indexBlock, indirectArray);
+		boolean changed = false;
+		for (int i = Math.max(first - directSize, 0); i < indirectSize; i++){
+			short pointer = SysLib.bytes2short(indirectArray, i*2);
+			if (pointer != -1){
+				blocks[count++] = blockOf(pointer);
+				SysLib.short2bytes((short)-1, indirectArray, i*2);
+				changed = true;
+			}
+		}
+		if (first <= directSize){				//index block now unused
+			indirect = -1;
+			blocks[count++] = indexBlock;
+		}
+		else if (changed)
+			SysLib.rawwrite(indexBlock, indirectArray);
+		BlockPool.give(indirectArray);
+		return count;
+	}
+	
     /** 
      * scanIndirect
      * @param  int offset  .
@@ -187,31 +409,32 @@ public class Inode {
      * that location data and return int representing blockNum.
      */
 	private int scanIndirect(int offset){
-		int targetBlock = -1;
-		byte directLoc = (byte) ((offset/512-11)*2);	//determine loc in indirectArray
+		int directLoc = (offset/Disk.blockSize-directSize)*2;	//determine loc in indirectArray
 		
-		//if out of current range
-		if(offset>=length)
-			return -1;
-		
-		byte[] indirectArray = new byte[512];	
+		byte[] indirectArray = BlockPool.take();	
 		SysLib.rawread(indirect, indirectArray); //read inderectArray
-		targetBlock = indirectArray[directLoc+1]; //find directBlock data
-		return targetBlock; 
+		short block = SysLib.bytes2short(indirectArray, directLoc); //find directBlock data
+		BlockPool.give(indirectArray);
+		return block;
 	}
     /** 
      * writeIndirect
-     * @param  short targetBlockNum  .
+     * @param  int index, short targetBlockNum  .
      * @pre    .
      * @post   .
-     * Writes block information by writing to next free block. Increment
-     * nextIndirectPointer variable. 
+     * @return 0 on success, -1 if the pointer is already in use
+     * Writes block information into slot index of the index block.
      */
-	private void writeIndirect(short targetBlockNum){	
-		byte[] indirectArray = new byte[512];	
+	private int writeIndirect(int index, short targetBlockNum){	
+		byte[] indirectArray = BlockPool.take();	
 		SysLib.rawread(indirect, indirectArray); //read inderectArray
-		SysLib.short2bytes(targetBlockNum, indirectArray, (int) nextIndirectPointer*2);
-		SysLib.rawwrite(indirect, indirectArray);	
-		nextIndirectPointer++;
+		int result = -1;
+		if (SysLib.bytes2short(indirectArray, index*2) < 0){
+			SysLib.short2bytes(targetBlockNum, indirectArray, index*2);
+			SysLib.rawwrite(indirect, indirectArray);
+			result = 0;
+		}
+		BlockPool.give(indirectArray);
+		return result;
 	}
 }
@@ -37,6 +37,36 @@ public class Kernel
                                           //              int whence )
     public final static int FORMAT  = 18; // SysLib.format( int files )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
+    public final static int MKDIR   = 20; // SysLib.mkdir( String path )
+    public final static int READDIR = 21; // SysLib.readdir( String path,
+                                          //       int cursor, String names[] )
+    public final static int LOCK    = 22; // SysLib.lock( int fd, int offset,
+                                          //       int length, int type )
+    public final static int RAWREADAT = 23; // SysLib.rawread( int blk,
+                                            //       byte b[], int offset )
+    public final static int PREAD   = 24; // SysLib.pread( int fd, byte b[],
+                                          //       int start, int length,
+                                          //       int offset )
+    public final static int PWRITE  = 25; // SysLib.pwrite( int fd, byte b[],
+                                          //       int start, int length,
+                                          //       int offset )
+    public final static int READV   = 26; // SysLib.readv( int fd, byte b[][] )
+    public final static int WRITEV  = 27; // SysLib.writev( int fd, byte b[][] )
+    public final static int FSYNC   = 28; // SysLib.fsync( int fd )
+    public final static int FALLOCATE = 29; // SysLib.fallocate( int fd,
+                                            //       int length )
+    public final static int FTRUNCATE = 30; // SysLib.ftruncate( int fd,
+                                            //       int length )
+    public final static int CLONE   = 31; // SysLib.clone( String source,
+                                          //       String target )
+    public final static int MMAP    = 32; // SysLib.mmap( int fd, int offset,
+                                          //       int length )
+    public final static int MSYNC   = 33; // SysLib.msync( MappedView view )
+    public final static int MUNMAP  = 34; // SysLib.munmap( MappedView view )
+    public final static int COPYRANGE = 35; // SysLib.copyFileRange( int in,
+                                            //       int out, int length )
+    public final static int SENDFILE = 36; // SysLib.sendfile( int fd,
+                                           //       int out, int length )
 
     // Predefined file descriptors
     public final static int STDIN  = 0;
@@ -66,6 +96,13 @@ public class Kernel
     // File System
     private static FileSystem fs;
 
+    // Where a RAWREADAT puts its block. SysLib keeps one per thread, so
+    // reading a block into part of a buffer allocates nothing.
+    public static class BlockTarget {
+	public byte[] buffer;
+	public int offset;
+    }
+
     // The heart of Kernel
     public static int interrupt( int irq, int cmd, int param, Object args ) {
 	TCB myTcb;
@@ -122,6 +159,17 @@ public class Kernel
 		while ( disk.testAndResetReady( ) == false )
 		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
 		return OK;
+	    case RAWREADAT: // read a block of data into part of a buffer
+		BlockTarget at = ( BlockTarget )args;
+		byte[] b = at.buffer;
+		int offset = at.offset;
+		if ( offset < 0 || offset > b.length - Disk.blockSize )
+		    return ERROR;
+		while ( disk.read( param, b, offset ) == false )
+		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
+		while ( disk.testAndResetReady( ) == false )
+		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
+		return OK;
 	    case RAWWRITE: // write a block of data to disk
 		while ( disk.write( param, ( byte[] )args ) == false )
 		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
@@ -214,6 +262,91 @@ public class Kernel
             return fs.format(param) ? OK : ERROR;
 	    case DELETE:  // to be implemented in project
             return fs.delete((String)args) ? OK : ERROR;
+	    case MKDIR:
+            return fs.mkdir((String)args) ? OK : ERROR;
+	    case READDIR:
+            Object[] o = (Object[])args;
+            return fs.readdir((String)o[0], param, (String[])o[1]);
+	    case LOCK:
+            if ((myTcb = scheduler.getMyTcb()) != null) {
+                int[] i = (int[])args;
+                return fs.lock(myTcb.getFtEnt(param), i[0], i[1], i[2]);
+            } // end if (scheduler.getMyTcb()) != null)
+            return ERROR;
+	    case PREAD:
+            if ((myTcb = scheduler.getMyTcb()) != null) {
+                Object[] p = (Object[])args;
+                int[] i = (int[])p[1];
+                return fs.pread(myTcb.getFtEnt(param), (byte[])p[0], i[0],
+                                i[1], i[2]);
+            } // end if (scheduler.getMyTcb()) != null)
+            return ERROR;
+	    case PWRITE:
+            if ((myTcb = scheduler.getMyTcb()) != null) {
+                Object[] p = (Object[])args;
+                int[] i = (int[])p[1];
+                return fs.pwrite(myTcb.getFtEnt(param), (byte[])p[0], i[0],
+                                 i[1], i[2]);
+            } // end if (scheduler.getMyTcb()) != null)
+            return ERROR;
+	    case READV:
+            if ((myTcb = scheduler.getMyTcb()) != null) {
+                return fs.readv(myTcb.getFtEnt(param), (byte[][])args);
+            } // end if (scheduler.getMyTcb()) != null)
+            return ERROR;
+	    case WRITEV:
+            if ((myTcb = scheduler.getMyTcb()) != null) {
+                return fs.writev(myTcb.getFtEnt(param), (byte[][])args);
+            } // end if (scheduler.getMyTcb()) != null)
+            return ERROR;
+	    case FSYNC:
+            if ((myTcb = scheduler.getMyTcb()) != null)
+                return fs.fsync(myTcb.getFtEnt(param)) ? OK : ERROR;
+            return ERROR;
+	    case FALLOCATE:
+            if ((myTcb = scheduler.getMyTcb()) != null)
+                return fs.fallocate(myTcb.getFtEnt(param),
+                                    ((Integer)args).intValue());
+            return ERROR;
+	    case FTRUNCATE:
+            if ((myTcb = scheduler.getMyTcb()) != null)
+                return fs.ftruncate(myTcb.getFtEnt(param),
+                                    ((Integer)args).intValue());
+            return ERROR;
+	    case CLONE:
+            String[] names = (String[])args;
+            return fs.clone(names[0], names[1]) ? OK : ERROR;
+	    case MMAP:
+            if ((myTcb = scheduler.getMyTcb()) != null) {
+                Object[] m = (Object[])args;
+                int[] i = (int[])m[0];
+                MappedView[] views = (MappedView[])m[1];
+                views[0] = fs.mmap(myTcb.getFtEnt(param), i[0], i[1]);
+                return (views[0] != null) ? OK : ERROR;
+            } // end if (scheduler.getMyTcb()) != null)
+            return ERROR;
+	    case MSYNC:
+            return fs.msync((MappedView)args) ? OK : ERROR;
+	    case MUNMAP:
+            return fs.munmap((MappedView)args) ? OK : ERROR;
+	    case COPYRANGE:
+	    case SENDFILE:
+            if ((myTcb = scheduler.getMyTcb()) != null) {
+                int[] i = (int[])args;
+                switch ( i[0] ) {
+                case STDIN:
+                    return ERROR;
+                case STDOUT:
+                    return fs.sendfile(myTcb.getFtEnt(param), System.out,
+                                       i[1]);
+                case STDERR:
+                    return fs.sendfile(myTcb.getFtEnt(param), System.err,
+                                       i[1]);
+                }
+                return fs.copyFileRange(myTcb.getFtEnt(param),
+                                        myTcb.getFtEnt(i[0]), i[1]);
+            } // end if (scheduler.getMyTcb()) != null)
+            return ERROR;
 	    }
 	    return ERROR;
 	case INTERRUPT_DISK: // Disk interrupts
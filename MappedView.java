@@ -0,0 +1,282 @@
+/*
+ * @file    MappedView.java
+ * @brief   This class is the view of part of a file that mmap() returns. A
+ *           block of the file is read into the view the first time a byte
+ *           of it is accessed, so mapping a large file costs nothing until
+ *           it is used, and later accesses to the block are array accesses
+ *           with no system call and no copy. Blocks changed through the view
+ *           are marked dirty, and only those are written back on msync(),
+ *           munmap() or close. A write through any descriptor of the file
+ *           makes the clean blocks it reaches stale, so they are read again
+ *           on their next access; a dirty block keeps the changes made
+ *           through the view. Bytes past the end of the file read as zeros.
+ * @author  Brendan Sweeney, SID 1161836; Chris Grass
+ * @date    December 14, 2012
+ */
+import java.nio.ReadOnlyBufferException;
+import java.util.BitSet;
+
+
+public class MappedView {
+    FileTableEntry     ftEnt;       // the entry the view was mapped through
+    int                offset;      // the file offset of the first byte
+    private FileSystem fs;          // reads blocks on first access
+    private byte[]     data;        // the bytes, where loaded
+    private BitSet     loaded;      // blocks read since they went stale
+    private BitSet     dirty;       // blocks changed since written back
+    private boolean    writable;    // whether put() is allowed
+    private boolean    mapped;      // whether the view is still mapped
+    private int        version;     // times blocks went stale
+
+
+    /**
+     * Initializes a view of length bytes of a file from offset, with no block
+     *  read yet.
+     * @param  fs        The file system that reads the blocks.
+     * @param  ftEnt     The entry mapped through.
+     * @param  offset    The file offset of the first byte.
+     * @param  length    The number of bytes viewed.
+     * @param  writable  Whether the bytes may be changed.
+     * @pre    offset is not negative; length is positive.
+     * @post   This MappedView is mapped; every block is read on first access.
+     */
+    MappedView(FileSystem fs, FileTableEntry ftEnt, int offset, int length,
+               boolean writable) {
+        this.fs       = fs;
+        this.ftEnt    = ftEnt;
+        this.offset   = offset;
+        this.writable = writable;
+        data          = new byte[length];
+        loaded        = new BitSet(block(length - 1) + 1);
+        dirty         = new BitSet(block(length - 1) + 1);
+        mapped        = true;
+    } // end constructor
+
+
+    /**
+     * Returns the number of bytes viewed.
+     * @pre    None.
+     * @post   None.
+     * @return The length the view was mapped with.
+     */
+    public int capacity() {
+        return data.length;
+    } // end capacity()
+
+
+    /**
+     * Determines whether bytes may be changed through this view.
+     * @pre    None.
+     * @post   None.
+     * @return true if the file was opened for reading only; false otherwise.
+     */
+    public boolean isReadOnly() {
+        return !writable;
+    } // end isReadOnly()
+
+
+    /**
+     * Reads a byte of the view, reading its block from the file first if it
+     *  was not read yet or went stale.
+     * @param  index  The position of the byte in the view.
+     * @pre    index is within the view; the view is mapped or the block was
+     *          read before it was unmapped.
+     * @post   The block of index is loaded.
+     * @return The byte at index.
+     * @throws IndexOutOfBoundsException if index is not within the view.
+     * @throws IllegalStateException if the block must be read after the view
+     *          was unmapped.
+     */
+    public byte get(int index) {
+        int block = block(index);
+
+        while (true) {
+            synchronized (this) {
+                if (loaded.get(block)) {
+                    return data[index];
+                } // end if (loaded.get(block))
+            } // end synchronized (this)
+
+            load(block);
+        } // end while (true)
+    } // end get(int)
+
+
+    /**
+     * Changes a byte of the view and marks its block dirty, reading the block
+     *  from the file first if it was not read yet or went stale.
+     * @param  index  The position of the byte in the view.
+     * @param  value  The new byte.
+     * @pre    index is within the view; the view is mapped.
+     * @post   The byte at index is value; its block is dirty.
+     * @return This view.
+     * @throws IndexOutOfBoundsException if index is not within the view.
+     * @throws ReadOnlyBufferException if the view is read-only.
+     * @throws IllegalStateException if the block must be read after the view
+     *          was unmapped.
+     */
+    public MappedView put(int index, byte value) {
+        int block = block(index);
+
+        if (!writable) {
+            throw new ReadOnlyBufferException();
+        } // end if (!writable)
+
+        while (true) {
+            synchronized (this) {
+                if (loaded.get(block)) {
+                    data[index] = value;
+                    dirty.set(block);
+                    return this;
+                } // end if (loaded.get(block))
+            } // end synchronized (this)
+
+            load(block);
+        } // end while (true)
+    } // end put(int, byte)
+
+
+    /**
+     * Marks the clean blocks of this view that hold part of a byte range of
+     *  the file stale, after the range was written through any entry.
+     * @param  start  The file offset of the first byte written.
+     * @param  end    One past the file offset of the last byte written.
+     * @pre    None.
+     * @post   No clean block within the range is loaded.
+     */
+    synchronized void stale(int start, int end) {
+        int first = Math.max(start - offset, 0);
+        int last  = Math.min(end - offset, data.length) - 1;
+
+        if (first > last) {
+            return;
+        } // end if (first > last)
+
+        for (int i = block(first); i <= block(last); ++i) {
+            if (!dirty.get(i)) {
+                loaded.clear(i);
+            } // end if (!dirty.get(i))
+        } // end for (; i <= block(last); )
+
+        ++version;
+    } // end stale(int, int)
+
+
+    /**
+     * Finds the first dirty block at or after a given one.
+     * @param  from  The block to start from.
+     * @pre    from is not negative.
+     * @post   None.
+     * @return The block found; -1 if none is dirty.
+     */
+    synchronized int nextDirty(int from) {
+        return dirty.nextSetBit(from);
+    } // end nextDirty(int)
+
+
+    /**
+     * Copies a dirty block out to be written back and marks it clean; if it
+     *  is changed again meanwhile, it is dirty once more.
+     * @param  block   The block to copy.
+     * @param  buffer  Receives the bytes of block within the view.
+     * @pre    buffer holds Disk.blockSize bytes.
+     * @post   block is clean.
+     * @return The number of bytes copied.
+     */
+    synchronized int takeDirty(int block, byte buffer[]) {
+        int start = start(block);
+        int count = start(block + 1) - start;
+
+        System.arraycopy(data, start, buffer, 0, count);
+        dirty.clear(block);
+        return count;
+    } // end takeDirty(int, byte[])
+
+
+    /**
+     * Marks a block dirty again after writing it back failed.
+     * @param  block  The block that was not written.
+     * @pre    None.
+     * @post   block is dirty.
+     */
+    synchronized void redirty(int block) {
+        dirty.set(block);
+    } // end redirty(int)
+
+
+    /**
+     * Stops blocks from being read into this view. Blocks already loaded can
+     *  still be read and changed, but the changes never reach the file.
+     * @pre    None.
+     * @post   This view is no longer mapped.
+     */
+    synchronized void unmap() {
+        mapped = false;
+    } // end unmap()
+
+
+    /**
+     * Returns the position in the view of the first byte of a block.
+     * @param  block  A block of the view; one past the last for the length.
+     * @pre    block is not negative.
+     * @post   None.
+     * @return The position, no less than 0 and no more than the length.
+     */
+    int start(int block) {
+        int first = offset / Disk.blockSize;
+
+        return Math.min(Math.max((first + block) * Disk.blockSize - offset, 0),
+                        data.length);
+    } // end start(int)
+
+
+    /*
+     * Returns the block of the view that holds a position, or throws if the
+     *  position is outside the view.
+     */
+    private int block(int index) {
+        if (index < 0 || index >= data.length) {
+            throw new IndexOutOfBoundsException();
+        } // end if (index < 0...)
+
+        return (offset + index) / Disk.blockSize - offset / Disk.blockSize;
+    } // end block(int)
+
+
+    /*
+     * Reads a block of the file into the view unless it is loaded by then.
+     *  The read is made without the monitor of the view, since it may write
+     *  back buffered bytes that make other views stale; the bytes are only
+     *  taken if no write made the block stale meanwhile.
+     */
+    private void load(int block) {
+        int start = start(block);
+        int count = start(block + 1) - start;
+        int seen;
+
+        synchronized (this) {
+            if (loaded.get(block)) {
+                return;
+            } // end if (loaded.get(block))
+
+            if (!mapped) {
+                throw new IllegalStateException("view is unmapped");
+            } // end if (!mapped)
+
+            seen = version;
+        } // end synchronized (this)
+
+        byte[] buffer = BlockPool.take();
+
+        fs.fill(ftEnt, offset + start, buffer, count);
+
+        synchronized (this) {
+            if (!loaded.get(block) && version == seen) {
+                System.arraycopy(buffer, 0, data, start, count);
+                loaded.set(block);
+            } // end if (!loaded.get(block)...)
+        } // end synchronized (this)
+
+        BlockPool.give(buffer);
+    } // end load(int)
+} // end class MappedView
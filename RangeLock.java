@@ -0,0 +1,227 @@
+/*
+ * @file    RangeLock.java
+ * @brief   This class locks byte ranges of a single file. A range may be held
+ *           shared or exclusive by an owner, which is the file table entry
+ *           that took it. Ranges of different owners conflict when they
+ *           overlap and at least one of them is exclusive; ranges of the same
+ *           owner never conflict. Threads whose ranges do not overlap proceed
+ *           in parallel. Ranges are either implicit, held for the length of
+ *           one read or write, or explicit, held until unlocked or until their
+ *           owner is closed. Ranges given back through release() are kept for
+ *           reuse, so that reads and writes do not allocate one each.
+ * @author  Brendan Sweeney, SID 1161836; Chris Grass
+ * @date    December 14, 2012
+ */
+import java.util.ArrayList;
+import java.util.Iterator;
+
+
+public class RangeLock {
+    public final static int WHOLE = Integer.MAX_VALUE;  // end of every file
+
+    private ArrayList<Range> held;  // ranges currently granted
+    private Range spare;            // released ranges, linked through next
+
+
+    /**
+     * Initializes a RangeLock with no ranges held.
+     * @pre    None.
+     * @post   Every range of the file is free.
+     */
+    public RangeLock() {
+        held = new ArrayList<Range>();
+    } // end constructor
+
+
+    /**
+     * Takes a range, waiting until no other owner holds a conflicting one.
+     * @param  owner      The entry taking the range.
+     * @param  start      The first byte of the range.
+     * @param  end        One past the last byte of the range.
+     * @param  exclusive  Whether the range excludes every other owner.
+     * @param  explicit   Whether the range outlives the current call.
+     * @pre    0 <= start < end.
+     * @post   The range is held by owner.
+     * @return The range taken, to be passed to release(); null if the thread
+     *          was interrupted while waiting.
+     */
+    public synchronized Range lock(Object owner, int start, int end,
+                                   boolean exclusive, boolean explicit) {
+        while (conflicts(owner, start, end, exclusive)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            } // end try
+        } // end while (conflicts(owner...))
+
+        return grant(owner, start, end, exclusive, explicit);
+    } // end lock(Object, int, int, boolean, boolean)
+
+
+    /**
+     * Takes a range only if no other owner holds a conflicting one.
+     * @param  owner      The entry taking the range.
+     * @param  start      The first byte of the range.
+     * @param  end        One past the last byte of the range.
+     * @param  exclusive  Whether the range excludes every other owner.
+     * @param  explicit   Whether the range outlives the current call.
+     * @pre    0 <= start < end.
+     * @post   The range is held by owner if it was free.
+     * @return The range taken; null if it conflicts with another owner.
+     */
+    public synchronized Range tryLock(Object owner, int start, int end,
+                                      boolean exclusive, boolean explicit) {
+        if (conflicts(owner, start, end, exclusive)) {
+            return null;
+        } // end if (conflicts(owner...))
+
+        return grant(owner, start, end, exclusive, explicit);
+    } // end tryLock(Object, int, int, boolean, boolean)
+
+
+    /**
+     * Gives back a range returned by lock() or tryLock().
+     * @param  range  The range to give back.
+     * @pre    range is held.
+     * @post   range is free; threads waiting on it may proceed.
+     */
+    public synchronized void release(Range range) {
+        if (held.remove(range)) {
+            range.owner = null;
+            range.next  = spare;
+            spare       = range;
+            notifyAll();
+        } // end if (held.remove(range))
+    } // end release(Range)
+
+
+    /**
+     * Gives back every explicit range of an owner that overlaps a span.
+     * @param  owner  The entry whose ranges are given back.
+     * @param  start  The first byte of the span.
+     * @param  end    One past the last byte of the span.
+     * @pre    None.
+     * @post   owner holds no explicit range overlapping the span.
+     * @return The number of ranges given back.
+     */
+    public synchronized int unlock(Object owner, int start, int end) {
+        int count = 0;
+
+        for (Iterator<Range> i = held.iterator(); i.hasNext(); ) {
+            Range range = i.next();
+
+            if (range.owner == owner && range.explicit
+                    && range.start < end && start < range.end) {
+                i.remove();
+                ++count;
+            } // end if (range.owner == owner...)
+        } // end for (; i.hasNext(); )
+
+        if (count > 0) {
+            notifyAll();
+        } // end if (count > 0)
+
+        return count;
+    } // end unlock(Object, int, int)
+
+
+    /**
+     * Gives back every range of an owner, as when it is closed.
+     * @param  owner  The entry whose ranges are given back.
+     * @pre    None.
+     * @post   owner holds no range.
+     */
+    public synchronized void unlockAll(Object owner) {
+        boolean found = false;
+
+        for (Iterator<Range> i = held.iterator(); i.hasNext(); ) {
+            if (i.next().owner == owner) {
+                i.remove();
+                found = true;
+            } // end if (i.next().owner == owner)
+        } // end for (; i.hasNext(); )
+
+        if (found) {
+            notifyAll();
+        } // end if (found)
+    } // end unlockAll(Object)
+
+
+    /**
+     * Determines whether a range would conflict with one held by another
+     *  owner.
+     * @param  owner      The entry asking for the range.
+     * @param  start      The first byte of the range.
+     * @param  end        One past the last byte of the range.
+     * @param  exclusive  Whether the range is asked for exclusively.
+     * @pre    The monitor of this RangeLock is held.
+     * @post   This RangeLock remains unchanged.
+     * @return true if another owner holds an overlapping range and either
+     *          range is exclusive; false otherwise.
+     */
+    private boolean conflicts(Object owner, int start, int end,
+                              boolean exclusive) {
+        for (int i = 0; i < held.size(); ++i) {
+            Range range = held.get(i);
+
+            if (range.owner != owner && (exclusive || range.exclusive)
+                    && range.start < end && start < range.end) {
+                return true;
+            } // end if (range.owner != owner...)
+        } // end for (; i < held.size(); )
+
+        return false;
+    } // end conflicts(Object, int, int, boolean)
+
+
+    /**
+     * Records a range as held, reusing a released one if there is any.
+     *  Ranges dropped by unlock() or unlockAll() are not reused, since the
+     *  thread that took an implicit one may still give it back.
+     * @param  owner      The entry taking the range.
+     * @param  start      The first byte of the range.
+     * @param  end        One past the last byte of the range.
+     * @param  exclusive  Whether the range excludes every other owner.
+     * @param  explicit   Whether the range outlives the current call.
+     * @pre    The monitor of this RangeLock is held; the range conflicts
+     *          with no other owner.
+     * @post   The range is held by owner.
+     * @return The range taken.
+     */
+    private Range grant(Object owner, int start, int end, boolean exclusive,
+                        boolean explicit) {
+        Range range = spare;
+
+        if (range == null) {
+            range = new Range();
+        } else {
+            spare = range.next;
+        } // end if (range == null)
+
+        range.owner     = owner;
+        range.start     = start;
+        range.end       = end;
+        range.exclusive = exclusive;
+        range.explicit  = explicit;
+        range.next      = null;
+        held.add(range);
+        return range;
+    } // end grant(Object, int, int, boolean, boolean)
+
+
+    /*
+     * A byte range granted to an owner.
+     */
+    public static class Range {
+        private Object  owner;
+        private int     start;
+        private int     end;
+        private boolean exclusive;
+        private boolean explicit;
+        private Range   next;       // the next spare range
+
+        private Range() {
+        } // end constructor
+    } // end class Range
+} // end class RangeLock
@@ -0,0 +1,147 @@
+/*
+ * @file    Reclaimer.java
+ * @brief   This class is a background thread that returns the blocks of
+ *           deleted files to the free list. A deleted file is handed over
+ *           once no descriptor refers to it any longer; the reclaimer then
+ *           frees its blocks a batch at a time, yielding between batches, and
+ *           finally makes its inode number available again. Callers of delete
+ *           and close therefore never wait for the blocks to be freed.
+ * @author  Brendan Sweeney, SID 1161836; Chris Grass
+ * @date    December 14, 2012
+ */
+import java.util.LinkedList;
+
+
+public class Reclaimer extends Thread {
+    private final static int batchSize = 16;    // blocks freed per batch
+
+    private SuperBlock superblock;
+    private LinkedList<Orphan> queue;   // files waiting to be reclaimed
+    private int pending;                // files queued or being reclaimed
+
+
+    /**
+     * Initializes a Reclaimer for the blocks of a file system. The thread is
+     *  a daemon, so it does not keep ThreadOS from shutting down.
+     * @param  superblock  The superblock whose free list receives the blocks.
+     * @pre    superblock describes the mounted file system.
+     * @post   This Reclaimer is ready to be started; its queue is empty.
+     */
+    public Reclaimer(SuperBlock superblock) {
+        this.superblock = superblock;
+        queue   = new LinkedList<Orphan>();
+        pending = 0;
+        setDaemon(true);
+    } // end constructor
+
+
+    /**
+     * Queues an unlinked file whose blocks are to be freed.
+     * @param  iNumber  The inode number of the file.
+     * @param  table    The file table that releases the inode number once
+     *                   the blocks are free.
+     * @pre    iNumber has been unlinked and no descriptor refers to it.
+     * @post   The file will be reclaimed in the background.
+     */
+    public synchronized void reclaim(short iNumber, FileTable table) {
+        queue.addLast(new Orphan(iNumber, table));
+        ++pending;
+        notifyAll();
+    } // end reclaim(short, FileTable)
+
+
+    /**
+     * Waits until every queued file has been reclaimed.
+     * @pre    None.
+     * @post   The queue is empty and no file is being reclaimed; the free
+     *          list in the superblock includes every block of every file
+     *          handed over so far.
+     */
+    public synchronized void drain() {
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            } // end try
+        } // end while (pending > 0)
+    } // end drain()
+
+
+    /**
+     * Reclaims queued files one at a time until ThreadOS shuts down.
+     */
+    public void run() {
+        while (true) {
+            Orphan next;
+
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    } // end try
+                } // end while (queue.isEmpty())
+
+                next = queue.removeFirst();
+            } // end synchronized (this)
+
+            free(next.iNumber);
+            next.table.release(next.iNumber);
+
+            synchronized (this) {
+                --pending;
+                notifyAll();
+            } // end synchronized (this)
+        } // end while (true)
+    } // end run()
+
+
+    /**
+     * Returns every block of a file, written or only reserved, to the free
+     *  list, batchSize blocks at a time, and writes back the emptied inode.
+     *  Blocks shared with a clone only lose a reference; so does an index
+     *  block shared with a clone, whose blocks stay with the clone.
+     * @param  iNumber  The inode number of the file.
+     * @pre    No descriptor refers to iNumber.
+     * @post   The inode on disk has no blocks, no length and flag 0.
+     */
+    private void free(short iNumber) {
+        Inode inode  = new Inode(iNumber);
+        int   blocks[] = new int[Inode.directSize + Inode.indirectSize + 1];
+        
+        if (inode.indirect != -1 && superblock.unshare(inode.indirect)) {
+            inode.indirect = -1;
+        } // end if (inode.indirect != -1...)
+        
+        int   count  = inode.unmapBlocks(0, blocks);
+
+        for (int i = 0; i < count; i += batchSize) {
+            for (int j = i; j < count && j < i + batchSize; ++j) {
+                superblock.returnBlock(blocks[j]);
+            } // end for (; j < count...)
+
+            Thread.yield();
+        } // end for (; i < count; )
+
+        inode.length = 0;
+        inode.count  = 0;
+        inode.flag   = 0;
+        inode.toDisk(iNumber);
+    } // end free(short)
+
+
+    /*
+     * A file waiting to be reclaimed and the table that owns its inode number.
+     */
+    private static class Orphan {
+        short     iNumber;
+        FileTable table;
+
+        Orphan(short iNumber, FileTable table) {
+            this.iNumber = iNumber;
+            this.table   = table;
+        } // end constructor
+    } // end class Orphan
+} // end class Reclaimer
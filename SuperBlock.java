@@ -4,15 +4,38 @@
  *           to maintain three variables: total blocks that make up the disk,
  *           total inodes in the file system (maximum number of files), and the
  *           first unused disk block. Despite the small size, the superblock
- *           requires an entire block (block 0) when stored to disk.
+ *           requires an entire block (block 0) when stored to disk. Blocks
+ *           are handed out through a few shards, each caching a handful of
+ *           free block numbers under its own lock, so that threads writing
+ *           different files rarely contend on the free list itself.
+ *
+ *          Blocks shared by cloned files carry a reference count: the number
+ *           of references beyond the first, one byte per disk block. The
+ *           table is only created by the first clone; the blocks that hold it
+ *           on disk are listed in block 0 after the free list head. Returning
+ *           a shared block drops a reference instead of freeing it.
+ *
+ *          The last word of block 0 holds the version of the on-disk layout
+ *           of directory files; disks written before it existed read as 0.
  * @author  Brendan Sweeney, SID 1161836
  * @date    December 14, 2012
  */
 public class SuperBlock {
     private final int defaultTotalInodes = 64;
+    private final static int shardCount = 4;    // independent block caches
+    private final static int shardSize  = 16;   // max blocks cached per shard
+    private final static int versionOffset = Disk.blockSize - 4;
+    public final static int currentVersion = 1; // packed directory records
     public int totalBlocks;     // the number of disk blocks
     public int inodeBlocks;     // the number of inodes
     public int freeList;        // the block number of the free list's head
+    public boolean formatted;   // whether the disk was formatted at mount
+    public int version;         // layout of the directory files on disk
+    private int shards[][] = new int[shardCount][shardSize];
+    private int shardCounts[] = new int[shardCount];  // blocks in each shard
+    private byte refs[];        // extra references per block, if any shared
+    private int refBlocks[];    // blocks that hold refs on disk
+    private Object refLock = new Object();
     
     
     /**
@@ -41,24 +64,40 @@ public class SuperBlock {
             SysLib.cerr("Formatting\n");
             inodeBlocks = defaultTotalInodes;
             freeList    = inodeBlocks / (Disk.blockSize / Inode.iNodeSize) + 1;
+            formatted   = true;
             format(diskBlocks);
+        } else {
+            version = SysLib.bytes2int(superBlock, versionOffset);
+            loadRefs(superBlock);
         } // end if (totalBlocks != diskBlocks...)
     } // end constructor
     
     
     /**
-     * Writes this SuperBlock to block 0 of the virtual disk.
+     * Writes this SuperBlock to block 0 of the virtual disk. Blocks cached by
+     *  the shards are first put back on the free list, so that the list on
+     *  disk is complete.
      * @pre    None.
      * @post   Block 0 of the virtual disk contains a superblock which is
-     *          represented by this one.
+     *          represented by this one; the shards are empty.
      */
     public void sync() {
+        for (int i = 0; i < shardCount; ++i) {
+            synchronized (shards[i]) {
+                while (shardCounts[i] > 0) {
+                    pushFreeList(shards[i][--shardCounts[i]]);
+                } // end while (shardCounts[i] > 0)
+            } // end synchronized (shards[i])
+        } // end for (; i < shardCount; )
+        
     /* write totalBlocks, inodeBlocks, freelist
         to disk */
         byte[] buffer = new byte[Disk.blockSize];
         SysLib.int2bytes(totalBlocks, buffer, 0);
         SysLib.int2bytes(inodeBlocks, buffer, 4);
         SysLib.int2bytes(freeList,    buffer, 8);
+        SysLib.int2bytes(version,     buffer, versionOffset);
+        storeRefs(buffer);
         SysLib.rawwrite(0, buffer);
     } // end sync()
     
@@ -94,7 +133,20 @@ public class SuperBlock {
      *          each contain the number of the following block.
      */
     public void format(int numBlocks) {
+        // blocks cached from the old free list are rewritten below
+        for (int i = 0; i < shardCount; ++i) {
+            synchronized (shards[i]) {
+                shardCounts[i] = 0;
+            } // end synchronized (shards[i])
+        } // end for (; i < shardCount; )
+        
+        synchronized (refLock) {
+            refs      = null;
+            refBlocks = null;
+        } // end synchronized (refLock)
+        
         totalBlocks   = numBlocks;
+        version       = currentVersion;
         byte[] buffer = new byte[Disk.blockSize];
         
         // initialize free list and write it to disk
@@ -110,18 +162,267 @@ public class SuperBlock {
     
 
     /**
-     * Provides the number of the first unused block on disk and removes that
-     *  block from the head of the free list.
-     * @pre    The free list contains an unused block.
-     * @post   freeList points to the block following the previous head of the
-     *          list, or contains -1 if the list is now empty.
-     * @return The number of the first unused block if one is available; -1
+     * Provides the number of an unused block and removes it from the free
+     *  blocks. The block comes from the shard of the calling thread, which is
+     *  refilled from the head of the free list when it runs dry; only then is
+     *  the free list itself locked. When the free list is empty as well,
+     *  blocks cached by the other shards are used.
+     * @pre    None.
+     * @post   The block returned, if any, is neither in the free list nor in
+     *          any shard.
+     * @return The number of an unused block if one is available; -1
      *          otherwise.
      */
     public int getFreeBlock() {
+        int shard = shardOf(Thread.currentThread());
+        
+        synchronized (shards[shard]) {
+            if (shardCounts[shard] == 0) {
+                // take half a shard at once to spare later trips
+                while (shardCounts[shard] < shardSize / 2) {
+                    int block = popFreeList();
+                    
+                    if (block < 0) {
+                        break;
+                    } // end if (block < 0)
+                    
+                    shards[shard][shardCounts[shard]++] = block;
+                } // end while (shardCounts[shard] < shardSize / 2)
+            } // end if (shardCounts[shard] == 0)
+            
+            if (shardCounts[shard] > 0) {
+                return shards[shard][--shardCounts[shard]];
+            } // end if (shardCounts[shard] > 0)
+        } // end synchronized (shards[shard])
+        
+        // the disk is nearly full; take from the other shards
+        for (int i = 0; i < shardCount; ++i) {
+            synchronized (shards[i]) {
+                if (shardCounts[i] > 0) {
+                    return shards[i][--shardCounts[i]];
+                } // end if (shardCounts[i] > 0)
+            } // end synchronized (shards[i])
+        } // end for (; i < shardCount; )
+        
+        return -1;
+    } // end getFreeBlock()
+    
+
+    /**
+     * Provides several unused blocks at once, taken from the head of the free
+     *  list in list order under a single lock. On a freshly formatted disk
+     *  the list runs in block order, so the blocks come out contiguous. The
+     *  shards are bypassed; when the free list runs out, fewer blocks are
+     *  provided than asked for.
+     * @param  blocks  Receives the numbers of the blocks.
+     * @pre    None.
+     * @post   The blocks provided are no longer in the free list.
+     * @return The number of entries of blocks filled.
+     */
+    public synchronized int getFreeBlocks(int blocks[]) {
+        int count = 0;
+        
+        while (count < blocks.length) {
+            int block = popFreeList();
+            
+            if (block < 0) {
+                break;
+            } // end if (block < 0)
+            
+            blocks[count++] = block;
+        } // end while (count < blocks.length)
+        
+        return count;
+    } // end getFreeBlocks(int[])
+    
+
+    /**
+     * Returns a block to the free blocks. The block is cached by the shard of
+     *  the calling thread; when that shard is full, half of it is put back at
+     *  the head of the free list. A shared block only loses a reference.
+     * @param  oldBlockNumber  Number of the block to be freed.
+     * @pre    oldBlockNumber is neither in the free list nor in any shard.
+     * @post   oldBlockNumber may be handed out by getFreeBlock() again.
+     * @return true of the specified block could be freed; false otherwise.
+     */
+    public boolean returnBlock(int oldBlockNumber) {
+        if (oldBlockNumber < 1 || oldBlockNumber > totalBlocks) {
+            return false;
+        } // end if (oldBlockNumber < 1...)
+        
+        synchronized (refLock) {
+            if (refs != null && oldBlockNumber < refs.length
+                    && refs[oldBlockNumber] != 0) {
+                --refs[oldBlockNumber];     // another file still uses it
+                return true;
+            } // end if (refs != null...)
+        } // end synchronized (refLock)
+        
+        int     shard  = shardOf(Thread.currentThread());
+        boolean result = true;
+        
+        synchronized (shards[shard]) {
+            if (shardCounts[shard] == shardSize) {
+                while (shardCounts[shard] > shardSize / 2) {
+                    result &= pushFreeList(
+                            shards[shard][--shardCounts[shard]]);
+                } // end while (shardCounts[shard] > shardSize / 2)
+            } // end if (shardCounts[shard] == shardSize)
+            
+            shards[shard][shardCounts[shard]++] = oldBlockNumber;
+        } // end synchronized (shards[shard])
+        
+        return result;
+    } // end returnBlock(int)
+    
+    
+    /**
+     * Adds a reference to a block, as when a clone starts sharing it. The
+     *  reference count table is created on first use.
+     * @param  blockNumber  The block to share.
+     * @pre    blockNumber is in use.
+     * @post   returnBlock(blockNumber) must be called once more before the
+     *          block is freed.
+     * @return true if successful; false if the block has as many references
+     *          as a count can hold or no block is left for the table.
+     */
+    public boolean share(int blockNumber) {
+        if (blockNumber < 1 || blockNumber >= totalBlocks) {
+            return false;
+        } // end if (blockNumber < 1...)
+        
+        synchronized (refLock) {
+            if (refs == null) {
+                int count = (totalBlocks + Disk.blockSize - 1)
+                            / Disk.blockSize;
+                int table[] = new int[count];
+                
+                for (int i = 0; i < count; ++i) {
+                    table[i] = getFreeBlock();
+                    
+                    if (table[i] < 0) {
+                        while (--i >= 0) {
+                            returnBlock(table[i]);
+                        } // end while (--i >= 0)
+                        
+                        return false;
+                    } // end if (table[i] < 0)
+                } // end for (; i < count; )
+                
+                refs      = new byte[count * Disk.blockSize];
+                refBlocks = table;
+            } // end if (refs == null)
+            
+            if (refs[blockNumber] == (byte)0xff) {
+                return false;
+            } // end if (refs[blockNumber] == (byte)0xff)
+            
+            ++refs[blockNumber];
+            return true;
+        } // end synchronized (refLock)
+    } // end share(int)
+    
+    
+    /**
+     * Determines whether more than one file refers to a block, so that
+     *  writing it in place would change the others.
+     * @param  blockNumber  The block in question.
+     * @pre    None.
+     * @post   This SuperBlock remains unchanged.
+     * @return true if the block has more than one reference; false otherwise.
+     */
+    public boolean isShared(int blockNumber) {
+        synchronized (refLock) {
+            return refs != null && blockNumber > 0
+                    && blockNumber < totalBlocks && refs[blockNumber] != 0;
+        } // end synchronized (refLock)
+    } // end isShared(int)
+    
+    
+    /**
+     * Drops a reference to a block, but only while another file still refers
+     *  to it. Unlike returnBlock(), this never frees the block, so a caller
+     *  that finds the block no longer shared keeps it and what it maps.
+     * @param  blockNumber  The block in question.
+     * @pre    The caller holds a reference to blockNumber.
+     * @post   The caller no longer refers to blockNumber if true is returned.
+     * @return true if a reference was dropped; false if the block is not
+     *          shared, in which case nothing changed.
+     */
+    public boolean unshare(int blockNumber) {
+        synchronized (refLock) {
+            if (!isShared(blockNumber)) {
+                return false;
+            } // end if (!isShared(blockNumber))
+            
+            --refs[blockNumber];
+            return true;
+        } // end synchronized (refLock)
+    } // end unshare(int)
+    
+    
+    /**
+     * Reads the reference count table listed in block 0, if there is one.
+     * @param  superBlock  The contents of block 0.
+     * @pre    None.
+     * @post   refs holds the counts on disk, or is null if no block has ever
+     *          been shared since the disk was formatted.
+     */
+    private void loadRefs(byte superBlock[]) {
+        int count = SysLib.bytes2int(superBlock, 12);
+        
+        if (count <= 0 || count > (versionOffset - 16) / 4) {
+            return;
+        } // end if (count <= 0...)
+        
+        refs      = new byte[count * Disk.blockSize];
+        refBlocks = new int[count];
+        
+        for (int i = 0; i < count; ++i) {
+            refBlocks[i] = SysLib.bytes2int(superBlock, 16 + i * 4);
+            SysLib.rawread(refBlocks[i], refs, i * Disk.blockSize);
+        } // end for (; i < count; )
+    } // end loadRefs(byte[])
+    
+    
+    /**
+     * Writes the reference count table, if there is one, and lists its blocks
+     *  in the image of block 0.
+     * @param  superBlock  The image of block 0 about to be written.
+     * @pre    None.
+     * @post   The table on disk matches refs.
+     */
+    private void storeRefs(byte superBlock[]) {
+        synchronized (refLock) {
+            int count = (refBlocks == null) ? 0 : refBlocks.length;
+            
+            SysLib.int2bytes(count, superBlock, 12);
+            
+            for (int i = 0; i < count; ++i) {
+                byte block[] = BlockPool.take();
+                
+                System.arraycopy(refs, i * Disk.blockSize, block, 0,
+                                 Disk.blockSize);
+                SysLib.rawwrite(refBlocks[i], block);
+                SysLib.int2bytes(refBlocks[i], superBlock, 16 + i * 4);
+                BlockPool.give(block);
+            } // end for (; i < count; )
+        } // end synchronized (refLock)
+    } // end storeRefs(byte[])
+    
+    
+    /**
+     * Removes the block at the head of the free list.
+     * @pre    None.
+     * @post   freeList points to the block following the previous head of the
+     *          list, or contains -1 if the list is now empty.
+     * @return The number of the first block in the free list if there is one;
+     *          -1 otherwise.
+     */
+    private synchronized int popFreeList() {
     /* dequeue top block 
         in freelist */
-        byte[] buffer = new byte[Disk.blockSize];
+        byte[] buffer = BlockPool.take();
         int    temp   = freeList;
         
         if (freeList != -1) {
@@ -129,12 +430,13 @@ public class SuperBlock {
             freeList = SysLib.bytes2int(buffer, 0);
         } // end if (freeList != -1)
         
+        BlockPool.give(buffer);
         return temp;
-    } // end getFreeBlock()
+    } // end popFreeList()
+    
     
-
     /**
-     * Returns a block to the free list at the head.
+     * Places a block at the head of the free list.
      * @param  oldBlockNumber  Number of the block to be placed at the head of
      *                          the free list.
      * @pre    oldBlockNumber is not already in the free list.
@@ -143,17 +445,27 @@ public class SuperBlock {
      * @return true of the specified block could be written to the free list;
      *          false otherwise.
      */
-    public boolean returnBlock(int oldBlockNumber) {
+    private synchronized boolean pushFreeList(int oldBlockNumber) {
     /* enqueue oldBlockNumber 
         to top of freelist */
-        if (oldBlockNumber < 1 || oldBlockNumber > totalBlocks) {
-            return false;
-        } // end if (oldBlockNumber < 1...)
-        
-        byte[] buffer = new byte[Disk.blockSize];
+        byte[] buffer = BlockPool.take();
         SysLib.int2bytes(freeList, buffer, 0);
         freeList = oldBlockNumber;
         
-        return SysLib.rawwrite(oldBlockNumber, buffer) == Kernel.OK;
-    } // end returnBlock(int)
+        boolean result = SysLib.rawwrite(oldBlockNumber, buffer) == Kernel.OK;
+        BlockPool.give(buffer);
+        return result;
+    } // end pushFreeList(int)
+    
+    
+    /**
+     * Picks the shard that serves a thread.
+     * @param  thread  The thread allocating or freeing a block.
+     * @pre    None.
+     * @post   This SuperBlock remains unchanged.
+     * @return The index of the shard of thread.
+     */
+    private static int shardOf(Thread thread) {
+        return (int)(thread.getId() % shardCount);
+    } // end shardOf(Thread)
 } // end class SuperBlock
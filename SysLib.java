@@ -94,6 +94,193 @@ public class SysLib {
     } // end close(int)
     
     
+    /**
+     * Commits all writes made so far through fd to the disk, without closing
+     *  it. Small writes are otherwise gathered in memory until a block fills
+     *  or fd is closed or moved.
+     * @param  fd  File descriptor of the file to commit.
+     * @pre    The file described by fd is open.
+     * @post   All bytes written through fd, and the file's length, are on
+     *          disk.
+     * @return 0 if successful; -1 otherwise.
+     */
+    public static int fsync(int fd) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FSYNC, fd, null);
+    } // end fsync(int)
+    
+    
+    /**
+     * Reserves disk blocks for the first length bytes of the file associated
+     *  with fd without writing them, and extends the file to length bytes if
+     *  it is shorter. Reserved bytes read as zeros. A writer that knows the
+     *  final size of a file can reserve it up front, so its later writes need
+     *  no block allocation and the file is laid out in as few runs of
+     *  consecutive blocks as the free list allows.
+     * @param  fd  File descriptor of the file.
+     * @param  length  The number of bytes to reserve.
+     * @pre    The file described by fd is open; length is not negative.
+     * @post   Every block of the first length bytes is allocated; the file is
+     *          at least length bytes long.
+     * @return 0 if successful; -1 otherwise, in which case nothing was
+     *          reserved.
+     */
+    public static int fallocate(int fd, int length) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FALLOCATE, fd, length);
+    } // end fallocate(int, int)
+    
+    
+    /**
+     * Sets the length of the file associated with fd. A shorter length frees
+     *  only the blocks past the new end; a longer one leaves a hole that
+     *  reads as zeros. The seek pointer is not moved.
+     * @param  fd  File descriptor of the file.
+     * @param  length  The new length of the file in bytes.
+     * @pre    The file described by fd is open; length is not negative.
+     * @post   The file is length bytes long.
+     * @return 0 if successful; -1 otherwise.
+     */
+    public static int ftruncate(int fd, int length) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FTRUNCATE, fd, length);
+    } // end ftruncate(int, int)
+    
+    
+    /**
+     * Makes target a copy of source that shares its blocks instead of copying
+     *  them, so cloning takes the same time however large source is. A block
+     *  is copied only when either file first writes to it; until then the
+     *  two files use no more disk space than one. target is created if it
+     *  does not exist and truncated first if it does.
+     * @param  source  The name of the file to copy.
+     * @param  target  The name of the copy.
+     * @pre    source is a file, not a directory; target is another name.
+     * @post   target holds the same bytes as source; writing either file does
+     *          not change the other.
+     * @return 0 if successful; -1 otherwise.
+     */
+    public static int clone(String source, String target) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CLONE, 0, new String[] { source, target });
+    } // end clone(String, String)
+    
+    
+    /**
+     * Maps part of the file associated with fd into memory. Each block is
+     *  read the first time a byte of it is accessed through the returned
+     *  view; after that, reading and writing it needs no system call and no
+     *  copy, which suits random lookups in a large file. Bytes past the end
+     *  of the file read as zeros. Blocks changed through the view are
+     *  written to the file by msync, munmap or closing fd; blocks written
+     *  through any descriptor meanwhile are read again unless they changed.
+     * @param  fd  File descriptor of the file.
+     * @param  offset  The file offset of the first byte to map.
+     * @param  length  The number of bytes to map.
+     * @pre    The file described by fd is open; offset is not negative and
+     *          length is positive.
+     * @post   The view shows the bytes of the file from offset on; it is
+     *          read-only if fd was opened for reading only.
+     * @return A view of length bytes of the file if successful; null
+     *          otherwise.
+     */
+    public static MappedView mmap(int fd, int offset, int length) {
+        MappedView views[] = new MappedView[1];
+        
+        if (Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.MMAP, fd,
+                             new Object[] { new int[] { offset, length },
+                                            views }) != Kernel.OK) {
+            return null;
+        } // end if (Kernel.interrupt(...) != Kernel.OK)
+        
+        return views[0];
+    } // end mmap(int, int, int)
+    
+    
+    /**
+     * Writes the blocks changed through a view returned by mmap to its file.
+     *  The view stays mapped.
+     * @param  view  The view returned by mmap.
+     * @pre    view is mapped.
+     * @post   Every change made through view so far is in the file.
+     * @return 0 if successful; -1 otherwise.
+     */
+    public static int msync(MappedView view) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.MSYNC, 0, view);
+    } // end msync(MappedView)
+    
+    
+    /**
+     * Writes the blocks changed through a view returned by mmap to its file,
+     *  like msync, and unmaps it. Later changes to view are not written.
+     * @param  view  The view returned by mmap.
+     * @pre    view is mapped.
+     * @post   Every change made through view is in the file; view is no
+     *          longer mapped.
+     * @return 0 if successful; -1 otherwise.
+     */
+    public static int munmap(MappedView view) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.MUNMAP, 0, view);
+    } // end munmap(MappedView)
+    
+    
+    /**
+     * Copies up to length bytes from the seek pointer of inFd to the seek
+     *  pointer of outFd, advancing both, without passing them through a
+     *  buffer of the caller. The kernel moves several blocks per pass, so
+     *  copying a file costs a few system calls instead of a read and a
+     *  write per buffer.
+     * @param  inFd  File descriptor of the file to copy from.
+     * @param  outFd  File descriptor of the file to copy to.
+     * @param  length  The number of bytes to copy at most.
+     * @pre    Both files are open; if they are the same file, the bytes read
+     *          and the bytes written do not overlap.
+     * @post   Both seek pointers are past the bytes copied.
+     * @return The number of bytes copied, fewer than length at the end of the
+     *          file of inFd or if the disk filled up; -1 on error.
+     */
+    public static int copyFileRange(int inFd, int outFd, int length) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.COPYRANGE, inFd,
+				 new int[] { outFd, length });
+    } // end copyFileRange(int, int, int)
+    
+    
+    /**
+     * Sends up to length bytes from the seek pointer of fd to outFd, which
+     *  may be STDOUT or STDERR as well as another file, advancing the seek
+     *  pointers. The bytes are moved inside the kernel like copyFileRange.
+     * @param  fd  File descriptor of the file to send.
+     * @param  outFd  Kernel.STDOUT, Kernel.STDERR, or the descriptor of a
+     *                 file.
+     * @param  length  The number of bytes to send at most.
+     * @pre    fd is open, and so is outFd if it describes a file.
+     * @post   The seek pointer of fd is past the bytes sent.
+     * @return The number of bytes sent; -1 on error.
+     */
+    public static int sendfile(int fd, int outFd, int length) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SENDFILE, fd, new int[] { outFd, length });
+    } // end sendfile(int, int, int)
+    
+    
+    /**
+     * Sends the rest of the file associated with fd, from its seek pointer
+     *  on, to outFd, as with sendfile( fd, outFd, length ).
+     * @param  fd  File descriptor of the file to send.
+     * @param  outFd  Kernel.STDOUT, Kernel.STDERR, or the descriptor of a
+     *                 file.
+     * @pre    fd is open, and so is outFd if it describes a file.
+     * @post   The seek pointer of fd is at the end of the file.
+     * @return The number of bytes sent; -1 on error.
+     */
+    public static int sendfile(int fd, int outFd) {
+        return sendfile(fd, outFd, Integer.MAX_VALUE);
+    } // end sendfile(int, int)
+    
+    
     /**
      * Returns the size in bytes of the file indicated by fd.
      * @param  fd  File descriptor of the file whose size is requested.
@@ -115,15 +302,17 @@ public class SysLib {
      *                  negative to specify a distance before whence.
      * @param  whence  Location in the file from which offset should start. 0
      *                  is the start of the file, 1 is the current seek pointer
-     *                  position, and 2 is the end of the file.
-     * @pre    If whence is 0, then offset is positive; if whence is 2, then
-     *          offset is negative; whence plus offset is within the bounds of
-     *          the file.
+     *                  position, and 2 is the end of the file. 3 (SEEK_DATA)
+     *                  and 4 (SEEK_HOLE) find the next data or hole position
+     *                  at or after offset.
+     * @pre    whence plus offset is not negative. The seek pointer may be set
+     *          past the end of the file; writing there leaves a hole that
+     *          reads as zeros.
      * @post   The file's seek pointer is set to the specified location.
      * @return The new seek pointer position if set; -1 otherwise.
      */
     public static int seek(int fd, int offset, int whence) {
-        int[] args = new int[2];
+        int[] args = seeks.get();
         args[0] = offset;
         args[1] = whence;
         
@@ -132,6 +321,14 @@ public class SysLib {
     } // end seek(int, int, int)
     
     
+    // the offset and whence of each thread's seek(), reused
+    private static ThreadLocal<int[]> seeks = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[2];
+        } // end initialValue()
+    };
+    
+    
     /**
      * Formats the disk, (i.e., Disk's data contents). The parameter files
      *  specifies the maximum number of files to be created, (i.e., the number
@@ -150,13 +347,14 @@ public class SysLib {
     
     
     /**
-     * Deletes the file specified by fileName. If the file is currently open,
-     *  it is not deleted until the last open on it is closed, but new attempts
-     *  to open it will fail.
+     * Deletes the file specified by fileName. The name is removed at once, so
+     *  new attempts to open it fail; descriptors already open on the file
+     *  keep working until they are closed. The call does not wait for them.
      * @param  fileName  The name of the file to delete.
      * @pre    fileName specifies a file that exists.
-     * @post   The file is removed from the file system directory, its inode is
-     *          made available, and its blocks are returned to the free list.
+     * @post   The file is removed from the file system directory; once its
+     *          last descriptor is closed, its blocks are returned to the free
+     *          list and its inode is made available in the background.
      * @return 0 if the file existed and was deleted; -1 otherwise.
      */
     public static int delete(String fileName) {
@@ -164,6 +362,210 @@ public class SysLib {
 				 Kernel.DELETE, 0, fileName);
     } // end delete(String)
     
+    
+    /**
+     * Creates an empty directory named by path. Path components are separated
+     *  by "/"; a path without a leading "/" starts at the root directory. Each
+     *  component may be up to 255 bytes long in UTF-8. Files and directories
+     *  below the new directory are named by extending its path, as in
+     *  "dir/file".
+     * @param  path  The path of the directory to create.
+     * @pre    Every component of path but the last names an existing
+     *          directory; the last does not exist yet.
+     * @post   path names an empty directory, which can be opened in mode "r"
+     *          and removed with delete() once empty.
+     * @return 0 if the directory was created; -1 otherwise.
+     */
+    public static int mkdir(String path) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.MKDIR, 0, path);
+    } // end mkdir(String)
+    
+    
+    /**
+     * Lists the entries of the directory named by path, in name order, one
+     *  batch at a time. Each call fills names with up to names.length entry
+     *  names and returns a cursor to pass to the next call; a listing starts
+     *  with cursor 0 and is complete when 0 is returned. Slots of names past
+     *  the last entry returned are set to null. Entries created or deleted
+     *  during a listing may or may not be reported.
+     * @param  path  The path of the directory to list.
+     * @param  cursor  0 to start a listing, or the value returned by the
+     *                  previous call.
+     * @param  names  A buffer that receives the next batch of entry names.
+     * @pre    path names a directory; names is not empty.
+     * @post   names holds the next batch of entry names.
+     * @return The cursor for the next batch if entries remain; 0 if the
+     *          listing is complete; -1 otherwise.
+     */
+    public static int readdir(String path, int cursor, String[] names) {
+        Object[] args = new Object[2];
+        args[0] = path;
+        args[1] = names;
+        
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.READDIR, cursor, args);
+    } // end readdir(String, int, String[])
+    
+    
+    /**
+     * Locks or unlocks a byte range of an open file. A shared range
+     *  (FileSystem.LOCK_SH) excludes writers from other descriptors; an
+     *  exclusive range (FileSystem.LOCK_EX) excludes readers and writers from
+     *  other descriptors. Unless FileSystem.LOCK_NB is or'ed into type, the
+     *  call waits until no conflicting range is held. Ranges are given back
+     *  with FileSystem.LOCK_UN or when fd is closed. Each read and write also
+     *  locks the bytes it touches for its own duration.
+     * @param  fd  The file descriptor of the file.
+     * @param  offset  The first byte of the range.
+     * @param  length  The number of bytes in the range; 0 covers everything
+     *                  from offset on, however far the file grows.
+     * @param  type  LOCK_SH, LOCK_EX or LOCK_UN, optionally with LOCK_NB.
+     * @pre    fd is open; offset and length are not negative.
+     * @post   The range is held, or no longer held, by fd.
+     * @return 0 if successful; -1 on error or if LOCK_NB was given and the
+     *          range is held by another descriptor.
+     */
+    public static int lock(int fd, int offset, int length, int type) {
+        int[] args = new int[3];
+        args[0] = offset;
+        args[1] = length;
+        args[2] = type;
+        
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.LOCK, fd, args);
+    } // end lock(int, int, int, int)
+    
+    
+    /**
+     * Reads up to buffer.length bytes from the file associated with fd,
+     *  starting at offset rather than at the seek pointer. The seek pointer
+     *  is left unchanged, so threads sharing fd may read different parts of
+     *  the file at the same time without seeking.
+     * @param  fd  File descriptor of the file to read.
+     * @param  buffer  A buffer into which bytes read from the file are placed.
+     * @param  offset  The file offset of the first byte to read.
+     * @pre    The file described by fd is open; offset is not negative.
+     * @post   buffer contains all bytes from offset up to either buffer.length
+     *          or the end of the file; the seek pointer is unchanged.
+     * @return The number of bytes read if successful; -1 otherwise.
+     */
+    public static int pread(int fd, byte[] buffer, int offset) {
+        return pread(fd, buffer, 0, buffer.length, offset);
+    } // end pread(int, byte[], int)
+    
+    
+    /**
+     * Reads up to length bytes from the file associated with fd, starting at
+     *  offset, into buffer from position start on. The seek pointer is left
+     *  unchanged.
+     * @param  fd  File descriptor of the file to read.
+     * @param  buffer  A buffer into which bytes read from the file are placed.
+     * @param  start  The position in buffer of the first byte read.
+     * @param  length  The number of bytes to read at most.
+     * @param  offset  The file offset of the first byte to read.
+     * @pre    The file described by fd is open; offset is not negative; start
+     *          and length describe part of buffer.
+     * @post   buffer from start on contains all bytes from offset up to either
+     *          length bytes or the end of the file; the rest of buffer and the
+     *          seek pointer are unchanged.
+     * @return The number of bytes read if successful; -1 otherwise.
+     */
+    public static int pread(int fd, byte[] buffer, int start, int length,
+                            int offset) {
+        Object[] args = new Object[2];
+        args[0] = buffer;
+        args[1] = new int[] { start, length, offset };
+        
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.PREAD, fd, args);
+    } // end pread(int, byte[], int, int, int)
+    
+    
+    /**
+     * Writes the contents of buffer to the file associated with fd, starting
+     *  at offset rather than at the seek pointer. The seek pointer is left
+     *  unchanged, so threads sharing fd may write different parts of the
+     *  file at the same time without seeking.
+     * @param  fd  File descriptor of the file to write into.
+     * @param  buffer  A buffer containing the bytes to be written to the file.
+     * @param  offset  The file offset of the first byte to write.
+     * @pre    The file described by fd is open; offset is not negative; there
+     *          are enough free blocks on the disk to hold the written bytes.
+     * @post   All bytes in buffer have been written to the file starting from
+     *          offset; the seek pointer is unchanged.
+     * @return The number of bytes written if successful; -1 otherwise.
+     */
+    public static int pwrite(int fd, byte[] buffer, int offset) {
+        return pwrite(fd, buffer, 0, buffer.length, offset);
+    } // end pwrite(int, byte[], int)
+    
+    
+    /**
+     * Writes length bytes of buffer, from position start on, to the file
+     *  associated with fd, starting at offset. The seek pointer is left
+     *  unchanged.
+     * @param  fd  File descriptor of the file to write into.
+     * @param  buffer  A buffer containing the bytes to be written to the file.
+     * @param  start  The position in buffer of the first byte written.
+     * @param  length  The number of bytes to write.
+     * @param  offset  The file offset of the first byte to write.
+     * @pre    The file described by fd is open; offset is not negative; start
+     *          and length describe part of buffer; there are enough free
+     *          blocks on the disk to hold the written bytes.
+     * @post   The length bytes of buffer from start on have been written to
+     *          the file starting from offset; the seek pointer is unchanged.
+     * @return The number of bytes written if successful; -1 otherwise.
+     */
+    public static int pwrite(int fd, byte[] buffer, int start, int length,
+                             int offset) {
+        Object[] args = new Object[2];
+        args[0] = buffer;
+        args[1] = new int[] { start, length, offset };
+        
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.PWRITE, fd, args);
+    } // end pwrite(int, byte[], int, int, int)
+    
+    
+    /**
+     * Reads from the file associated with fd into several buffers in turn,
+     *  starting at the seek pointer, as if they were one buffer as long as
+     *  all of them. The seek pointer is incremented by the number of bytes
+     *  read.
+     * @param  fd  File descriptor of the file to read.
+     * @param  buffers  The buffers to fill, first to last.
+     * @pre    The file described by fd is open.
+     * @post   buffers hold the bytes from the file's original seek pointer up
+     *          to their total length or the end of the file; seek pointer is
+     *          set to one past the last byte read.
+     * @return The number of bytes read if successful; -1 otherwise.
+     */
+    public static int readv(int fd, byte[][] buffers) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.READV, fd, buffers);
+    } // end readv(int, byte[][])
+    
+    
+    /**
+     * Writes several buffers in turn to the file associated with fd,
+     *  starting at the seek pointer, as if they were one buffer, without
+     *  copying them together first. The seek pointer is incremented by the
+     *  number of bytes written.
+     * @param  fd  File descriptor of the file to write into.
+     * @param  buffers  The buffers to write, first to last.
+     * @pre    The file described by fd is open; there are enough free blocks
+     *          on the disk to hold the written bytes.
+     * @post   All bytes in buffers have been written to the file starting
+     *          from its original seek pointer; seek pointer is set to one past
+     *          the last byte written.
+     * @return The number of bytes written if successful; -1 otherwise.
+     */
+    public static int writev(int fd, byte[][] buffers) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.WRITEV, fd, buffers);
+    } // end writev(int, byte[][])
+    
     /* End additions */
     
     
@@ -217,6 +619,25 @@ public class SysLib {
 				 Kernel.RAWREAD, blkNumber, b );
     }
 
+    // the request of each thread's rawread( int, byte[], int ), reused
+    private static ThreadLocal<Kernel.BlockTarget> targets
+        = new ThreadLocal<Kernel.BlockTarget>( ) {
+            protected Kernel.BlockTarget initialValue( ) {
+                return new Kernel.BlockTarget( );
+            }
+        };
+
+    // reads a block into b[offset] .. b[offset + Disk.blockSize - 1]
+    public static int rawread( int blkNumber, byte[] b, int offset ) {
+        Kernel.BlockTarget target = targets.get( );
+        target.buffer = b;
+        target.offset = offset;
+        int result = Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				       Kernel.RAWREADAT, blkNumber, target );
+        target.buffer = null;           // b is not kept reachable
+        return result;
+    }
+
     public static int rawwrite( int blkNumber, byte[] b ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.RAWWRITE, blkNumber, b );
@@ -0,0 +1,118 @@
+class Test10 extends Thread {
+  final static int SEEK_SET = 0;
+  final static int SEEK_DATA = 3;
+  final static int SEEK_HOLE = 4;
+  final static int GAP = 20;         // blocks skipped between the two writes
+
+  // "l Test10" checks that writing past the end of a file leaves a hole
+  // that reads as zeros without taking blocks, and that SEEK_DATA and
+  // SEEK_HOLE find the data and holes, buffered writes included
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( holes( ) )
+      SysLib.cout( "Correct behavior of writing past the end.........\n" );
+    if ( seeks( ) )
+      SysLib.cout( "Correct behavior of SEEK_DATA and SEEK_HOLE......\n" );
+    if ( buffered( ) )
+      SysLib.cout( "Correct behavior of seeking buffered writes......\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // writes 10 bytes at 0 and at block GAP of "sparse"
+  private int sparse( ) {
+    byte[] ten = new byte[10];
+    for ( int i = 0; i < ten.length; i++ )
+      ten[i] = ( byte )( i + 1 );
+    int fd = SysLib.open( "sparse", "w+" );
+    SysLib.write( fd, ten );
+    SysLib.seek( fd, 512 * GAP, SEEK_SET );
+    SysLib.write( fd, ten );
+    return fd;
+  }
+
+  private boolean holes( ) {
+    SysLib.close( SysLib.open( "sparse", "w" ) );  // the name takes a block
+    int before = freeBlocks( );
+    int fd = sparse( );
+    int size = SysLib.fsize( fd );
+    byte[] all = new byte[512 * ( GAP + 1 )];
+    SysLib.seek( fd, 0, SEEK_SET );
+    int read = SysLib.read( fd, all );
+    SysLib.close( fd );
+    int used = before - freeBlocks( );
+    SysLib.delete( "sparse" );
+
+    if ( size != 512 * GAP + 10 || read != size ) {
+      SysLib.cout( "size " + size + ", read " + read + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < read; i++ ) {
+      int offset = ( i < 10 ) ? i : i - 512 * GAP;
+      byte expected = ( offset >= 0 && offset < 10 ) ? ( byte )( offset + 1 )
+                                                      : 0;
+      if ( all[i] != expected ) {
+        SysLib.cout( "byte " + i + " is " + all[i] + " (wrong)\n" );
+        return false;
+      }
+    }
+    if ( used > 3 ) {              // two data blocks and the index block
+      SysLib.cout( "the holes took " + used + " blocks (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean seeks( ) {
+    int fd = sparse( );
+    int data0 = SysLib.seek( fd, 0, SEEK_DATA );
+    int hole0 = SysLib.seek( fd, 0, SEEK_HOLE );
+    int data1 = SysLib.seek( fd, 600, SEEK_DATA );
+    int hole1 = SysLib.seek( fd, 512 * GAP, SEEK_HOLE );
+    int none = SysLib.seek( fd, 512 * GAP + 10, SEEK_DATA );
+    SysLib.close( fd );
+    SysLib.delete( "sparse" );
+
+    if ( data0 != 0 || hole0 != 512 || data1 != 512 * GAP
+         || hole1 != 512 * GAP + 10 || none != -1 ) {
+      SysLib.cout( "data " + data0 + " hole " + hole0 + " data " + data1 +
+                   " hole " + hole1 + " past the end " + none +
+                   " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // a small write still buffered for another descriptor counts as data
+  private boolean buffered( ) {
+    int writer = SysLib.open( "buffered", "w+" );
+    SysLib.seek( writer, 512 * 15, SEEK_SET );
+    SysLib.write( writer, new byte[] { 1, 2, 3 } );
+    int seeker = SysLib.open( "buffered", "r" );
+    int data = SysLib.seek( seeker, 0, SEEK_DATA );
+    int hole = SysLib.seek( seeker, 512 * 15, SEEK_HOLE );
+    SysLib.close( seeker );
+    SysLib.close( writer );
+    SysLib.delete( "buffered" );
+
+    if ( data != 512 * 15 || hole != 512 * 15 + 3 ) {
+      SysLib.cout( "data " + data + " hole " + hole + " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // the number of free blocks, counted along the free list on disk once
+  // sync has put every free block back on it
+  private int freeBlocks( ) {
+    byte[] block = new byte[512];
+    int count = 0;
+    SysLib.sync( );
+    SysLib.rawread( 0, block );
+    for ( int next = SysLib.bytes2int( block, 8 ); next != -1; count++ ) {
+      SysLib.rawread( next, block );
+      next = SysLib.bytes2int( block, 0 );
+    }
+    return count;
+  }
+}
@@ -0,0 +1,121 @@
+class Test11 extends Thread {
+  final static int FILES = 10;       // files in the root directory
+  final static int BATCH = 3;        // names listed per call
+
+  // "l Test11" lists directories a few names at a time and checks that
+  // every name comes once, in order, even when the entry the cursor points
+  // at is removed between calls
+  public void run( ) {
+    SysLib.format( 48 );
+    for ( int i = FILES - 1; i >= 0; i-- )   // created out of name order
+      SysLib.close( SysLib.open( name( i ), "w" ) );
+
+    if ( paging( ) )
+      SysLib.cout( "Correct behavior of listing in batches...........\n" );
+    if ( subdirectory( ) )
+      SysLib.cout( "Correct behavior of listing a subdirectory.......\n" );
+    if ( removal( ) )
+      SysLib.cout( "Correct behavior of removing during a listing....\n" );
+    if ( errors( ) )
+      SysLib.cout( "Correct behavior of listing errors...............\n" );
+
+    for ( int i = 0; i < FILES; i++ )
+      SysLib.delete( name( i ) );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private String name( int i ) {
+    return "f" + ( char )( 'a' + i );
+  }
+
+  // lists path BATCH names at a time into a string of the names in order,
+  // or returns null if a call fails or a batch is not null-terminated
+  private String list( String path ) {
+    String[] names = new String[BATCH];
+    StringBuffer all = new StringBuffer( );
+    int cursor = 0;
+    do {
+      cursor = SysLib.readdir( path, cursor, names );
+      if ( cursor < 0 )
+        return null;
+      int count = 0;
+      while ( count < BATCH && names[count] != null )
+        all.append( names[count++] ).append( ' ' );
+      for ( int i = count; i < BATCH; i++ )
+        if ( names[i] != null )
+          return null;
+      if ( cursor != 0 && count != BATCH )
+        return null;
+    } while ( cursor != 0 );
+    return all.toString( );
+  }
+
+  private boolean paging( ) {
+    String expected = "";
+    for ( int i = 0; i < FILES; i++ )
+      expected += name( i ) + " ";
+    String listed = list( "/" );
+    if ( !expected.equals( listed ) ) {
+      SysLib.cout( "listed \"" + listed + "\" (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean subdirectory( ) {
+    boolean correct = SysLib.mkdir( "dir" ) == 0;
+    SysLib.close( SysLib.open( "dir/y", "w" ) );
+    SysLib.close( SysLib.open( "dir/x", "w" ) );
+    String inside = list( "dir" );
+    String root = list( "/" );
+    SysLib.delete( "dir/x" );
+    SysLib.delete( "dir/y" );
+    String empty = list( "dir" );
+    SysLib.delete( "dir" );
+
+    if ( !correct || !"x y ".equals( inside ) || root == null
+         || root.indexOf( "dir " ) < 0 || !"".equals( empty ) ) {
+      SysLib.cout( "dir \"" + inside + "\", root \"" + root +
+                   "\", emptied \"" + empty + "\" (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // the last name of the first batch is removed before the second call
+  private boolean removal( ) {
+    String[] names = new String[BATCH];
+    int cursor = SysLib.readdir( "/", 0, names );
+    String removed = names[BATCH - 1];
+    SysLib.delete( removed );
+    StringBuffer rest = new StringBuffer( );
+    while ( cursor > 0 ) {
+      cursor = SysLib.readdir( "/", cursor, names );
+      for ( int i = 0; i < BATCH && names[i] != null; i++ )
+        rest.append( names[i] ).append( ' ' );
+    }
+    SysLib.close( SysLib.open( removed, "w" ) );
+
+    String expected = "";
+    for ( int i = BATCH; i < FILES; i++ )
+      expected += name( i ) + " ";
+    if ( cursor != 0 || !expected.equals( rest.toString( ) ) ) {
+      SysLib.cout( "after removing " + removed + " listed \"" + rest +
+                   "\" (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean errors( ) {
+    String[] names = new String[BATCH];
+    int missing = SysLib.readdir( "nowhere", 0, names );
+    int file = SysLib.readdir( name( 0 ), 0, names );
+    if ( missing != -1 || file != -1 ) {
+      SysLib.cout( "missing " + missing + ", file " + file + " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,170 @@
+class Test12 extends Thread {
+  final static int SEEK_CUR = 1;
+  final static int RESERVED = 30000;     // bytes reserved by fallocate
+  final static int SHORT = 7000;         // length the file is cut to
+  final static int LONG = 9000;          // length it then grows to
+  final static int LEFT = 60;            // blocks left free for the undo
+
+  // "l Test12" reserves blocks with fallocate, fills them with writes that
+  // take no more blocks, cuts the file short and grows it again with
+  // ftruncate, and checks that a reservation the disk cannot hold leaves
+  // the file and the free list as they were
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( reserve( ) )
+      SysLib.cout( "Correct behavior of fallocate....................\n" );
+    if ( truncate( ) )
+      SysLib.cout( "Correct behavior of ftruncate....................\n" );
+    if ( undo( ) )
+      SysLib.cout( "Correct behavior of a failed fallocate...........\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private byte pattern( int i ) {
+    return ( byte )( i % 251 + 1 );
+  }
+
+  // the number of blocks a file of length bytes takes, index included
+  private int blocks( int length ) {
+    int data = ( length + 511 ) / 512;
+    return data + ( data > 11 ? 1 : 0 );
+  }
+
+  private boolean reserve( ) {
+    SysLib.close( SysLib.open( "f", "w" ) );  // the name takes a block
+    int before = freeBlocks( );
+    int fd = SysLib.open( "f", "w+" );
+    int result = SysLib.fallocate( fd, RESERVED );
+    int size = SysLib.fsize( fd );
+    int seek = SysLib.seek( fd, 0, SEEK_CUR );
+    byte[] zeros = new byte[RESERVED];
+    int read = SysLib.read( fd, zeros );
+    SysLib.close( fd );
+    int reserved = before - freeBlocks( );
+
+    fd = SysLib.open( "f", "w+" );
+    byte[] chunk = new byte[1000];
+    for ( int offset = 0; offset < RESERVED; offset += chunk.length ) {
+      for ( int i = 0; i < chunk.length; i++ )
+        chunk[i] = pattern( offset + i );
+      SysLib.pwrite( fd, chunk, offset );
+    }
+    SysLib.close( fd );
+    int written = before - freeBlocks( );
+
+    if ( result != 0 || size != RESERVED || seek != 0 || read != RESERVED ) {
+      SysLib.cout( "fallocate " + result + ", size " + size + ", seek " +
+                   seek + ", read " + read + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < read; i++ )
+      if ( zeros[i] != 0 ) {
+        SysLib.cout( "reserved byte " + i + " is not zero (wrong)\n" );
+        return false;
+      }
+    if ( reserved != blocks( RESERVED ) || written != reserved ) {
+      SysLib.cout( "reserved " + reserved + " blocks, then writing took " +
+                   ( written - reserved ) + " more (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // cuts the file written by reserve( ) to SHORT bytes, then grows it
+  private boolean truncate( ) {
+    int fd = SysLib.open( "f", "w+" );
+    SysLib.seek( fd, 100, 0 );
+    int cut = SysLib.ftruncate( fd, SHORT );
+    int shortSize = SysLib.fsize( fd );
+    int kept = SysLib.fallocate( fd, 1000 );   // reserves, never shrinks
+    int keptSize = SysLib.fsize( fd );
+    SysLib.close( fd );
+    int shortBlocks = freeBlocks( );
+
+    fd = SysLib.open( "f", "w+" );
+    int grown = SysLib.ftruncate( fd, LONG );
+    int seek = SysLib.seek( fd, 0, SEEK_CUR );
+    byte[] all = new byte[LONG + 10];
+    SysLib.seek( fd, 0, 0 );
+    int read = SysLib.read( fd, all );
+    SysLib.close( fd );
+    int longBlocks = freeBlocks( );
+    SysLib.delete( "f" );
+    int gone = freeBlocks( );
+
+    if ( cut != 0 || shortSize != SHORT || kept != 0 || keptSize != SHORT
+         || grown != 0 || seek != 0 || read != LONG ) {
+      SysLib.cout( "cut " + cut + " to " + shortSize + ", fallocate " + kept +
+                   " left " + keptSize + ", grew " + grown + ", seek " +
+                   seek + ", read " + read + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < read; i++ )
+      if ( all[i] != ( i < SHORT ? pattern( i ) : 0 ) ) {
+        SysLib.cout( "byte " + i + " is " + all[i] + " (wrong)\n" );
+        return false;
+      }
+    if ( gone - shortBlocks != blocks( SHORT ) || longBlocks != shortBlocks ) {
+      SysLib.cout( "the short file took " + ( gone - shortBlocks ) +
+                   " blocks, growing it " + ( shortBlocks - longBlocks ) +
+                   " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // fills the disk until LEFT blocks are free, then asks for more
+  private boolean undo( ) {
+    int fillers = 0;
+    int filled = 0;
+    for ( int free = freeBlocks( ); free > LEFT + 2 && filled == 0;
+          free = freeBlocks( ) ) {
+      int fd = SysLib.open( "filler" + fillers++, "w" );
+      filled = SysLib.fallocate( fd, 512 * Math.min( 256, free - LEFT - 2 ) );
+      SysLib.close( fd );
+    }
+    int fd = SysLib.open( "f", "w+" );
+    SysLib.write( fd, new byte[] { 1, 2, 3 } );
+    SysLib.close( fd );
+    int before = freeBlocks( );
+
+    fd = SysLib.open( "f", "w+" );
+    int failed = SysLib.fallocate( fd, 512 * ( before + 10 ) );
+    int size = SysLib.fsize( fd );
+    byte[] three = new byte[3];
+    int read = SysLib.read( fd, three );
+    SysLib.close( fd );
+    int after = freeBlocks( );
+
+    fd = SysLib.open( "f", "w+" );
+    int fits = SysLib.fallocate( fd, 512 * ( before - 2 ) );
+    SysLib.close( fd );
+    SysLib.delete( "f" );
+    for ( int i = 0; i < fillers; i++ )
+      SysLib.delete( "filler" + i );
+
+    if ( failed != -1 || size != 3 || read != 3 || three[2] != 3
+         || after != before || fits != 0 ) {
+      SysLib.cout( "fallocate " + failed + " left size " + size + ", read " +
+                   read + ", free blocks " + before + " then " + after +
+                   ", fallocate that fits " + fits + " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // the number of free blocks, counted along the free list on disk once
+  // sync has put every free block back on it
+  private int freeBlocks( ) {
+    byte[] block = new byte[512];
+    int count = 0;
+    SysLib.sync( );
+    SysLib.rawread( 0, block );
+    for ( int next = SysLib.bytes2int( block, 8 ); next != -1; count++ ) {
+      SysLib.rawread( next, block );
+      next = SysLib.bytes2int( block, 0 );
+    }
+    return count;
+  }
+}
@@ -0,0 +1,159 @@
+class Test13 extends Thread {
+  final static int LENGTH = 20000;       // long enough to need an index block
+  final static int PATCH = 100;          // bytes changed by each patch
+
+  // "l Test13" clones a file and checks that writes to either copy, small
+  // buffered ones included, stay out of the other, that deleting one copy
+  // leaves the blocks the others share, and that deleting every copy frees
+  // all their blocks, index blocks included
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( isolation( ) )
+      SysLib.cout( "Correct behavior of writing a clone..............\n" );
+    if ( reclaim( ) )
+      SysLib.cout( "Correct behavior of deleting clones..............\n" );
+    if ( errors( ) )
+      SysLib.cout( "Correct behavior of clone errors.................\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private byte pattern( int i ) {
+    return ( byte )( i * 7 + i / 511 );
+  }
+
+  // the number of blocks a file of length bytes takes, index included
+  private int blocks( int length ) {
+    int data = ( length + 511 ) / 512;
+    return data + ( data > 11 ? 1 : 0 );
+  }
+
+  private void original( String file ) {
+    byte[] all = new byte[LENGTH];
+    for ( int i = 0; i < LENGTH; i++ )
+      all[i] = pattern( i );
+    int fd = SysLib.open( file, "w" );
+    SysLib.write( fd, all );
+    SysLib.close( fd );
+  }
+
+  // overwrites PATCH bytes at offset with value, in one pwrite or in small
+  // writes that stay buffered until the close
+  private void patch( String file, int offset, byte value, boolean small ) {
+    byte[] bytes = new byte[small ? 10 : PATCH];
+    for ( int i = 0; i < bytes.length; i++ )
+      bytes[i] = value;
+    int fd = SysLib.open( file, "w+" );
+    if ( small ) {
+      SysLib.seek( fd, offset, 0 );
+      for ( int i = 0; i < PATCH; i += bytes.length )
+        SysLib.write( fd, bytes );
+    } else
+      SysLib.pwrite( fd, bytes, offset );
+    SysLib.close( fd );
+  }
+
+  // counts the bytes of file that differ from the pattern with value
+  // patched in at each of offsets
+  private int differences( String file, int offsets[], byte value ) {
+    byte[] all = new byte[LENGTH + 10];
+    int fd = SysLib.open( file, "r" );
+    int read = SysLib.read( fd, all );
+    SysLib.close( fd );
+    int wrong = Math.abs( read - LENGTH );
+    for ( int i = 0; i < LENGTH; i++ ) {
+      byte expected = pattern( i );
+      for ( int j = 0; j < offsets.length; j++ )
+        if ( i >= offsets[j] && i < offsets[j] + PATCH )
+          expected = value;
+      if ( all[i] != expected )
+        wrong++;
+    }
+    return wrong;
+  }
+
+  private boolean isolation( ) {
+    original( "a" );
+    int cloned = SysLib.clone( "a", "b" );
+    int same = differences( "b", new int[0], ( byte )0 );
+    patch( "b", 600, ( byte )'b', false );
+    patch( "b", 15000, ( byte )'b', true );
+    patch( "a", 5000, ( byte )'a', true );
+    patch( "a", 18000, ( byte )'a', false );
+    int a = differences( "a", new int[] { 5000, 18000 }, ( byte )'a' );
+    int b = differences( "b", new int[] { 600, 15000 }, ( byte )'b' );
+    SysLib.delete( "a" );
+    SysLib.delete( "b" );
+
+    if ( cloned != 0 || same != 0 || a != 0 || b != 0 ) {
+      SysLib.cout( "clone " + cloned + ", " + same + " bytes differ, then " +
+                   a + " in a and " + b + " in b (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // clones a into b and b into c, deleting them one at a time
+  private boolean reclaim( ) {
+    String[] files = { "a", "b", "c" };
+    for ( int i = 0; i < files.length; i++ )     // the names take blocks
+      SysLib.close( SysLib.open( files[i], "w" ) );
+    int before = freeBlocks( );
+    original( "a" );
+    SysLib.clone( "a", "b" );
+    patch( "b", 600, ( byte )'b', false );
+    SysLib.clone( "b", "c" );
+    int shared = before - freeBlocks( );
+
+    SysLib.delete( "a" );
+    int b = differences( "b", new int[] { 600 }, ( byte )'b' );
+    SysLib.delete( "b" );
+    int c = differences( "c", new int[] { 600 }, ( byte )'b' );
+    SysLib.delete( "c" );
+    for ( int i = 0; i < files.length; i++ )
+      SysLib.close( SysLib.open( files[i], "w" ) );
+    int leaked = before - freeBlocks( );
+    for ( int i = 0; i < files.length; i++ )
+      SysLib.delete( files[i] );
+
+    // a, then the block b copied and the index blocks of b and c
+    if ( shared > blocks( LENGTH ) + 3 || b != 0 || c != 0 || leaked != 0 ) {
+      SysLib.cout( "three copies took " + shared + " blocks, " + b + " and " +
+                   c + " bytes differ, " + leaked + " blocks leaked " +
+                   "(wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean errors( ) {
+    original( "a" );
+    int self = SysLib.clone( "a", "a" );
+    int directory = SysLib.clone( "/", "z" );
+    int missing = SysLib.clone( "nowhere", "z" );
+    int kept = differences( "a", new int[0], ( byte )0 );
+    SysLib.delete( "a" );
+
+    if ( self != -1 || directory != -1 || missing != -1 || kept != 0 ) {
+      SysLib.cout( "itself " + self + ", directory " + directory +
+                   ", missing " + missing + ", " + kept + " bytes differ " +
+                   "(wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // the number of free blocks, counted along the free list on disk once
+  // sync has put every free block back on it
+  private int freeBlocks( ) {
+    byte[] block = new byte[512];
+    int count = 0;
+    SysLib.sync( );
+    SysLib.rawread( 0, block );
+    for ( int next = SysLib.bytes2int( block, 8 ); next != -1; count++ ) {
+      SysLib.rawread( next, block );
+      next = SysLib.bytes2int( block, 0 );
+    }
+    return count;
+  }
+}
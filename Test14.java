@@ -0,0 +1,188 @@
+class Test14 extends Thread {
+  final static int SEEK_SET = 0;
+  final static int SEEK_CUR = 1;
+  final static int LENGTH = 20000;       // bytes of the file copied from
+  final static int SKIP = 333;           // where the partial copy starts
+  final static int HEAD = 700;           // bytes before it in the target
+  final static int COPIED = 5000;        // bytes the partial copy moves
+
+  // "l Test14" copies files with copyFileRange and sendfile and checks the
+  // bytes and seek pointers of both files, copies cut short at the end of
+  // the source, bytes still buffered for another descriptor, and errors;
+  // the line about sendfile to STDOUT is printed by sendfile itself
+  public void run( ) {
+    SysLib.format( 48 );
+    source( );
+    if ( whole( ) )
+      SysLib.cout( "Correct behavior of copying a whole file.........\n" );
+    if ( partial( ) )
+      SysLib.cout( "Correct behavior of copying part of a file.......\n" );
+    if ( buffered( ) )
+      SysLib.cout( "Correct behavior of copying buffered writes......\n" );
+    if ( console( ) )
+      SysLib.cout( "Correct behavior of sendfile.....................\n" );
+    if ( errors( ) )
+      SysLib.cout( "Correct behavior of copy errors..................\n" );
+    SysLib.delete( "src" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private byte pattern( int i ) {
+    return ( byte )( i * 11 + i / 300 );
+  }
+
+  private void source( ) {
+    byte[] all = new byte[LENGTH];
+    for ( int i = 0; i < LENGTH; i++ )
+      all[i] = pattern( i );
+    int fd = SysLib.open( "src", "w" );
+    SysLib.write( fd, all );
+    SysLib.close( fd );
+  }
+
+  // counts the bytes of file from offset on that differ from the source
+  // from start on, and whether the file is not offset + length bytes long
+  private int differences( String file, int offset, int start, int length ) {
+    byte[] all = new byte[offset + length + 10];
+    int fd = SysLib.open( file, "r" );
+    int read = SysLib.read( fd, all );
+    SysLib.close( fd );
+    int wrong = Math.abs( read - offset - length );
+    for ( int i = 0; i < length; i++ )
+      if ( all[offset + i] != pattern( start + i ) )
+        wrong++;
+    return wrong;
+  }
+
+  private boolean whole( ) {
+    int in = SysLib.open( "src", "r" );
+    int out = SysLib.open( "dst", "w" );
+    int copied = SysLib.copyFileRange( in, out, LENGTH + 1000 );
+    int inSeek = SysLib.seek( in, 0, SEEK_CUR );
+    int outSeek = SysLib.seek( out, 0, SEEK_CUR );
+    int more = SysLib.copyFileRange( in, out, 1000 );
+    SysLib.close( in );
+    SysLib.close( out );
+    int wrong = differences( "dst", 0, 0, LENGTH );
+    SysLib.delete( "dst" );
+
+    if ( copied != LENGTH || inSeek != LENGTH || outSeek != LENGTH
+         || more != 0 || wrong != 0 ) {
+      SysLib.cout( "copied " + copied + " then " + more + ", seeks " +
+                   inSeek + " and " + outSeek + ", " + wrong +
+                   " bytes differ (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // copies from the middle of the source to the end of HEAD zeros
+  private boolean partial( ) {
+    int in = SysLib.open( "src", "r" );
+    int out = SysLib.open( "dst", "w+" );
+    SysLib.write( out, new byte[HEAD] );
+    SysLib.seek( in, SKIP, SEEK_SET );
+    int copied = SysLib.copyFileRange( in, out, COPIED );
+    int inSeek = SysLib.seek( in, 0, SEEK_CUR );
+    int outSeek = SysLib.seek( out, 0, SEEK_CUR );
+    SysLib.close( in );
+    SysLib.close( out );
+    int wrong = differences( "dst", HEAD, SKIP, COPIED );
+    SysLib.delete( "dst" );
+
+    if ( copied != COPIED || inSeek != SKIP + COPIED
+         || outSeek != HEAD + COPIED || wrong != 0 ) {
+      SysLib.cout( "copied " + copied + ", seeks " + inSeek + " and " +
+                   outSeek + ", " + wrong + " bytes differ (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // small writes to the source are still buffered for the writer when
+  // another descriptor copies it
+  private boolean buffered( ) {
+    int writer = SysLib.open( "more", "w" );
+    byte[] ten = new byte[10];
+    for ( int offset = 0; offset < 100; offset += ten.length ) {
+      for ( int i = 0; i < ten.length; i++ )
+        ten[i] = pattern( offset + i );
+      SysLib.write( writer, ten );
+    }
+    int in = SysLib.open( "more", "r" );
+    int out = SysLib.open( "dst", "w" );
+    int copied = SysLib.copyFileRange( in, out, 1000 );
+    SysLib.close( out );
+    SysLib.close( in );
+    SysLib.close( writer );
+    int wrong = differences( "dst", 0, 0, 100 );
+    SysLib.delete( "dst" );
+    SysLib.delete( "more" );
+
+    if ( copied != 100 || wrong != 0 ) {
+      SysLib.cout( "copied " + copied + ", " + wrong + " bytes differ " +
+                   "(wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // sends a line to STDOUT past a prefix, then part of the source to a file
+  private boolean console( ) {
+    String line = "skipped: " +
+                  "Correct behavior of sendfile to STDOUT...........\n";
+    int fd = SysLib.open( "line", "w" );
+    SysLib.write( fd, line.getBytes( ) );
+    SysLib.close( fd );
+    fd = SysLib.open( "line", "r" );
+    SysLib.seek( fd, 9, SEEK_SET );
+    int sent = SysLib.sendfile( fd, Kernel.STDOUT );
+    int again = SysLib.sendfile( fd, Kernel.STDOUT );
+    SysLib.close( fd );
+    SysLib.delete( "line" );
+
+    int in = SysLib.open( "src", "r" );
+    int out = SysLib.open( "dst", "w" );
+    SysLib.seek( in, LENGTH - 100, SEEK_SET );
+    int tail = SysLib.sendfile( in, out, 1000 );
+    int inSeek = SysLib.seek( in, 0, SEEK_CUR );
+    SysLib.close( in );
+    SysLib.close( out );
+    int wrong = differences( "dst", 0, LENGTH - 100, 100 );
+    SysLib.delete( "dst" );
+
+    if ( sent != line.length( ) - 9 || again != 0 || tail != 100
+         || inSeek != LENGTH || wrong != 0 ) {
+      SysLib.cout( "sent " + sent + " then " + again + ", the tail " + tail +
+                   " to " + inSeek + ", " + wrong + " bytes differ " +
+                   "(wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  private boolean errors( ) {
+    int in = SysLib.open( "src", "r" );
+    int out = SysLib.open( "src", "w+" );
+    SysLib.seek( out, 50, SEEK_SET );
+    int overlap = SysLib.copyFileRange( in, out, 100 );
+    int itself = SysLib.copyFileRange( in, in, 10 );
+    SysLib.seek( out, LENGTH - 100, SEEK_SET );
+    int apart = SysLib.copyFileRange( in, out, 100 );  // copies 0..99 there
+    int stdin = SysLib.sendfile( in, Kernel.STDIN );
+    int closed = SysLib.copyFileRange( 9, out, 10 );
+    SysLib.close( out );
+    SysLib.close( in );
+    int wrong = differences( "src", LENGTH - 100, 0, 100 );
+
+    if ( overlap != -1 || itself != -1 || apart != 100 || stdin != -1
+         || closed != -1 || wrong != 0 ) {
+      SysLib.cout( "overlapping " + overlap + ", itself " + itself +
+                   ", apart " + apart + ", stdin " + stdin + ", closed " +
+                   closed + ", " + wrong + " bytes differ (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+}
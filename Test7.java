@@ -0,0 +1,188 @@
+class Test7 extends Thread {
+  final static int THREADS = 4;
+  final static int BLOCKS = 24;      // per file or per region, past direct
+  final static int REGION = 512 * BLOCKS - 200; // ends inside a block
+  final static int ROUNDS = 8;
+  final static int SLOT = 8;         // bytes each worker owns in turn
+  static int errors = 0;
+  final String mode;
+  final int id;
+
+  public Test7( String args[] ) {
+    mode = args[0];
+    id = Integer.parseInt( args[1] );
+  }
+
+  public Test7() {
+    mode = "main";
+    id = 0;
+  }
+
+  public void run( ) {
+    if ( mode.equals( "file" ) )
+      ownFile( );
+    else if ( mode.equals( "region" ) )
+      ownRegion( );
+    else if ( mode.equals( "slot" ) )
+      ownSlots( );
+    else {
+      SysLib.format( 48 );
+      long one = spawn( "file", 1 );
+      long many = spawn( "file", THREADS );
+      if ( errors == 0 )
+        SysLib.cout("Correct behavior of " + THREADS + " threads on own files.....\n");
+      int fd = SysLib.open( "shared", "w+" );
+      SysLib.close( fd );
+      long shared = spawn( "region", THREADS );
+      checkRegions( );
+      if ( errors == 0 )
+        SysLib.cout("Correct behavior of " + THREADS + " threads on one file......\n");
+      SysLib.delete( "shared" );
+      fd = SysLib.open( "slots", "w+" );
+      SysLib.write( fd, new byte[512] );
+      SysLib.close( fd );
+      spawn( "slot", THREADS );
+      checkSlots( );
+      if ( errors == 0 )
+        SysLib.cout("Correct behavior of " + THREADS + " threads on one block.....\n");
+      SysLib.delete( "slots" );
+      SysLib.cout( "1 thread: " + one + "ms, " + THREADS + " threads: " + many +
+                   "ms, shared file: " + shared + "ms\n" );
+      SysLib.cout( "Test completed\n" );
+    }
+    SysLib.exit( );
+  }
+
+  // runs count workers of the given kind and returns the elapsed time
+  private long spawn( String kind, int count ) {
+    long start = System.currentTimeMillis( );
+    for ( int i = 0; i < count; i++ )
+      SysLib.exec( SysLib.stringToArgs( "Test7 " + kind + " " + i ) );
+    for ( int i = 0; i < count; i++ )
+      SysLib.join( );
+    return System.currentTimeMillis( ) - start;
+  }
+
+  // rewrites and verifies a file of its own, then deletes it
+  private void ownFile( ) {
+    String file = "stress" + id;
+    int fd = SysLib.open( file, "w+" );
+    for ( int r = 0; r < ROUNDS; r++ ) {
+      SysLib.seek( fd, 0, 0 );
+      check( SysLib.write( fd, pattern( id, r, 512 * BLOCKS ) ) ==
+             512 * BLOCKS, file, r );
+      SysLib.seek( fd, 0, 0 );
+      check( verify( fd, r, 512 * BLOCKS ), file, r );
+    }
+    SysLib.close( fd );
+    SysLib.delete( file );
+  }
+
+  // rewrites and verifies a region of "shared" that no other worker touches;
+  // its first and last blocks are shared with the neighboring regions
+  private void ownRegion( ) {
+    int fd = SysLib.open( "shared", "w+" );
+    for ( int r = 0; r < ROUNDS; r++ ) {
+      SysLib.seek( fd, id * REGION, 0 );
+      check( SysLib.write( fd, pattern( id, r, REGION ) ) == REGION,
+             "shared", r );
+      SysLib.seek( fd, id * REGION, 0 );
+      check( verify( fd, r, REGION ), "shared", r );
+    }
+    SysLib.close( fd );
+  }
+
+  // checks that every byte of "shared" holds the last round of its owner
+  private void checkRegions( ) {
+    int fd = SysLib.open( "shared", "r" );
+    byte[] buf = new byte[THREADS * REGION];
+    if ( SysLib.read( fd, buf ) != buf.length )
+      errors++;
+    SysLib.close( fd );
+    for ( int owner = 0; owner < THREADS; owner++ ) {
+      byte[] expected = pattern( owner, ROUNDS - 1, REGION );
+      for ( int i = 0; i < REGION; i++ )
+        if ( buf[owner * REGION + i] != expected[i] ) {
+          errors++;
+          SysLib.cout( "shared: byte " + ( owner * REGION + i ) +
+                       " of worker " + owner + " lost\n" );
+          return;
+        }
+    }
+  }
+
+  // rewrites the slots of one block that it owns, by pwrite() on even rounds
+  // and by seek() and write() on odd ones
+  private void ownSlots( ) {
+    int fd = SysLib.open( "slots", "w+" );
+    byte[] slot = new byte[SLOT];
+    for ( int r = 0; r < ROUNDS; r++ ) {
+      java.util.Arrays.fill( slot, ( byte )( id * ROUNDS + r + 1 ) );
+      for ( int offset = id * SLOT; offset < 512; offset += THREADS * SLOT ) {
+        if ( r % 2 == 0 )
+          SysLib.pwrite( fd, slot, offset );
+        else {
+          SysLib.seek( fd, offset, 0 );
+          SysLib.write( fd, slot );
+        }
+      }
+      check( verifySlots( fd, r ), "slots", r );
+    }
+    SysLib.close( fd );
+  }
+
+  private boolean verifySlots( int fd, int round ) {
+    byte[] buf = new byte[512];
+    if ( SysLib.pread( fd, buf, 0 ) != buf.length )
+      return false;
+    for ( int offset = id * SLOT; offset < 512; offset += THREADS * SLOT )
+      for ( int i = offset; i < offset + SLOT; i++ )
+        if ( buf[i] != ( byte )( id * ROUNDS + round + 1 ) )
+          return false;
+    return true;
+  }
+
+  // checks that every byte of "slots" holds the last round of its owner
+  private void checkSlots( ) {
+    int fd = SysLib.open( "slots", "r" );
+    byte[] buf = new byte[512];
+    SysLib.read( fd, buf );
+    SysLib.close( fd );
+    for ( int i = 0; i < buf.length; i++ ) {
+      int owner = i / SLOT % THREADS;
+      if ( buf[i] != ( byte )( owner * ROUNDS + ROUNDS ) ) {
+        errors++;
+        SysLib.cout( "slots: byte " + i + " of worker " + owner + " lost\n" );
+        return;
+      }
+    }
+  }
+
+  private byte[] pattern( int owner, int round, int length ) {
+    byte[] buf = new byte[length];
+    for ( int i = 0; i < buf.length; i++ )
+      buf[i] = ( byte )( owner * 31 + round + i );
+    return buf;
+  }
+
+  private boolean verify( int fd, int round, int length ) {
+    byte[] expected = pattern( id, round, length );
+    byte[] buf = new byte[expected.length];
+    if ( SysLib.read( fd, buf ) != buf.length )
+      return false;
+    for ( int i = 0; i < buf.length; i++ )
+      if ( buf[i] != expected[i] )
+        return false;
+    return true;
+  }
+
+  private void check( boolean ok, String file, int round ) {
+    if ( !ok ) {
+      synchronized ( Test7.class ) {
+        errors++;
+      }
+      SysLib.cout( "worker " + id + ": " + file + " wrong in round " + round +
+                   "\n" );
+    }
+  }
+}
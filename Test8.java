@@ -0,0 +1,55 @@
+import java.lang.management.ManagementFactory;
+
+class Test8 extends Thread {
+  final static int BLOCKS = 64;      // file size, past the direct pointers
+  final static int ROUNDS = 20;
+  final static int BUDGET = 0;       // bytes a block may allocate, rounded down
+  final byte[] buf = new byte[512 * BLOCKS];
+  final byte[] block = new byte[512];
+
+  public void run( ) {
+    SysLib.format( 48 );
+    int fd = SysLib.open( "alloc", "w+" );
+    SysLib.write( fd, buf );           // allocate every block once
+    pass( fd );                        // warm up the block pools
+
+    long before = allocated( );
+    for ( int r = 0; r < ROUNDS; r++ )
+      pass( fd );
+    long bytes = allocated( ) - before;
+    SysLib.close( fd );
+    SysLib.delete( "alloc" );
+
+    long perBlock = bytes / ( 2 * ROUNDS * BLOCKS );
+    if ( bytes < 0 )
+      SysLib.cout( "allocation counting is not supported by this JVM\n" );
+    else if ( perBlock > BUDGET )
+      SysLib.cout( "Allocated " + perBlock + " bytes per block read or " +
+                   "written, over the budget of " + BUDGET + "......\n" );
+    else
+      SysLib.cout( "Correct behavior of allocation per block......\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // rewrites then rereads the whole file, one block per call
+  private void pass( int fd ) {
+    SysLib.seek( fd, 0, 0 );
+    for ( int i = 0; i < BLOCKS; i++ )
+      SysLib.write( fd, block );
+    SysLib.seek( fd, 0, 0 );
+    for ( int i = 0; i < BLOCKS; i++ )
+      SysLib.read( fd, block );
+  }
+
+  // bytes allocated so far by this thread, or -1 if unknown
+  private long allocated( ) {
+    try {
+      return ( ( com.sun.management.ThreadMXBean )
+               ManagementFactory.getThreadMXBean( ) )
+        .getThreadAllocatedBytes( Thread.currentThread( ).getId( ) );
+    } catch ( ClassCastException e ) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+class Test9 extends Thread {
+  final static int BLOCKS = 160;     // large enough to be reclaimed later
+  final String phase;
+
+  public Test9( String args[] ) {
+    phase = args[0];
+  }
+
+  public Test9() {
+    phase = "make";
+  }
+
+  // "l Test9" writes a large file; after a reboot "l Test9 reuse" deletes
+  // it and creates files while its inode number is still being reclaimed
+  public void run( ) {
+    if ( phase.equals( "reuse" ) )
+      reuse( );
+    else {
+      SysLib.format( 48 );
+      int fd = SysLib.open( "big", "w" );
+      SysLib.write( fd, new byte[512 * BLOCKS] );
+      SysLib.close( fd );
+      SysLib.sync( );
+      SysLib.cout( "Reboot ThreadOS, then run: l Test9 reuse\n" );
+    }
+    SysLib.exit( );
+  }
+
+  private void reuse( ) {
+    int errors = 0;
+    if ( SysLib.delete( "big" ) != 0 ) {
+      SysLib.cout( "big is missing; run l Test9 first\n" );
+      return;
+    }
+    create( "g", 1 );
+    SysLib.sleep( 2000 );              // let the reclaimer finish
+    create( "h", 2 );
+    create( "i", 3 );
+
+    String[] names = new String[16];
+    if ( SysLib.readdir( "/", 0, names ) != 0 )
+      errors++;
+    for ( int i = 0; i < names.length && names[i] != null; i++ )
+      for ( int j = 0; j < i; j++ )
+        if ( names[i].equals( names[j] ) ) {
+          SysLib.cout( names[i] + " is listed twice\n" );
+          errors++;
+        }
+    errors += verify( "g", 1 ) + verify( "h", 2 ) + verify( "i", 3 );
+
+    SysLib.delete( "g" );
+    SysLib.delete( "h" );
+    SysLib.delete( "i" );
+    if ( errors == 0 )
+      SysLib.cout( "Correct behavior of inode reuse after reboot......\n" );
+    SysLib.cout( "Test completed\n" );
+  }
+
+  // creates a file of size blocks, each byte holding size
+  private void create( String file, int size ) {
+    byte[] buf = new byte[512 * size];
+    for ( int i = 0; i < buf.length; i++ )
+      buf[i] = ( byte )size;
+    int fd = SysLib.open( file, "w" );
+    SysLib.write( fd, buf );
+    SysLib.close( fd );
+  }
+
+  private int verify( String file, int size ) {
+    int fd = SysLib.open( file, "r" );
+    byte[] buf = new byte[512 * size + 1];
+    int length = SysLib.fsize( fd );
+    int read = SysLib.read( fd, buf );
+    SysLib.close( fd );
+    if ( length != 512 * size || read != length ) {
+      SysLib.cout( file + " holds " + length + " bytes\n" );
+      return 1;
+    }
+    for ( int i = 0; i < read; i++ )
+      if ( buf[i] != ( byte )size ) {
+        SysLib.cout( file + " wrong at byte " + i + "\n" );
+        return 1;
+      }
+    return 0;
+  }
+}